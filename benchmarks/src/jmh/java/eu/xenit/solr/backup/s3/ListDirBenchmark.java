@@ -0,0 +1,59 @@
+package eu.xenit.solr.backup.s3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing the entries of {@link S3StorageClient#listDir} for a directory with many keys. The
+ * stub returns pages of at most 1000 keys, like S3, so the time is mostly the processing of the
+ * pages by the client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListDirBenchmark {
+
+    private static final String DIRECTORY = "backups/snapshot.1/";
+
+    @Param({"100000"})
+    public int keys;
+
+    private S3StorageClient client;
+
+    @Setup
+    public void setUp() {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        byte[] empty = new byte[0];
+        for (int i = 0; i < keys; i++) {
+            s3Client.objects().put(DIRECTORY + "_" + Integer.toString(i, Character.MAX_RADIX) + ".cfs",
+                    new InMemoryS3Client.StoredObject(empty, null, null));
+        }
+        client = new S3StorageClient(s3Client, S3Fixtures.config());
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public String[] listDir() throws IOException {
+        return client.listDir(DIRECTORY);
+    }
+}
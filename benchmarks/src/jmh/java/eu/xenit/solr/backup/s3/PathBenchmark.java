@@ -0,0 +1,61 @@
+package eu.xenit.solr.backup.s3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the URI of a backed-up file and turning it into an S3 key, as done for every file of
+ * a backup or a restore.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+
+    private S3BackupRepository repository;
+    private URI backupDir;
+    private URI file;
+
+    @Setup
+    public void setUp() {
+        repository = S3Fixtures.repository(new InMemoryS3Client());
+        backupDir = repository.resolveDirectory(repository.createDirectoryURI("/backups"), "snapshot.20240101");
+        file = repository.resolve(backupDir, "_4f.cfs");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        repository.close();
+    }
+
+    @Benchmark
+    public URI resolve() {
+        return repository.resolve(backupDir, "_4f.cfs");
+    }
+
+    @Benchmark
+    public URI resolveDirectory() {
+        return repository.resolveDirectory(backupDir, "shard1");
+    }
+
+    @Benchmark
+    public String getS3Path() {
+        return S3BackupRepository.getS3Path(file);
+    }
+}
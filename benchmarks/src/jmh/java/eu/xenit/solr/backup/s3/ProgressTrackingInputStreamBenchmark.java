@@ -0,0 +1,78 @@
+package eu.xenit.solr.backup.s3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Overhead of {@link ProgressTrackingInputStream} on the request bodies of uploads: the same bytes
+ * are read with and without it, with a listener like the one of {@link S3OutputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgressTrackingInputStreamBenchmark {
+
+    private static final int SIZE = 1024 * 1024;
+
+    // The HTTP client reads request bodies in small chunks
+    @Param({"1024", "8192", "131072"})
+    public int readSize;
+
+    private byte[] data;
+    private byte[] buffer;
+    private long logInterval;
+
+    @Setup
+    public void setUp() {
+        data = S3Fixtures.randomBytes(SIZE);
+        buffer = new byte[readSize];
+        logInterval = S3Fixtures.config().getProgressLogByteInterval();
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long untracked() throws IOException {
+        return drain(new ByteArrayInputStream(data));
+    }
+
+    @Benchmark
+    public long tracked() throws IOException {
+        Consumer<Long> listener = new Consumer<>() {
+            private long lastCheckpointBytes;
+
+            @Override
+            public void accept(Long totalBytesTransferred) {
+                if (totalBytesTransferred - lastCheckpointBytes >= logInterval) {
+                    lastCheckpointBytes = totalBytesTransferred;
+                }
+            }
+        };
+        return drain(new ProgressTrackingInputStream(new ByteArrayInputStream(data), listener));
+    }
+}
@@ -0,0 +1,98 @@
+package eu.xenit.solr.backup.s3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a backed-up file through {@link S3IndexInput}, so through {@code readInternal} and the
+ * block cache of the client. With a read cache of 0, every block is fetched from the stub again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3IndexInputBenchmark {
+
+    private static final String KEY = "backups/snapshot.1/_0.cfs";
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int RANDOM_READS = 1024;
+
+    @Param({"0", "67108864"})
+    public int readCacheSize;
+
+    private S3StorageClient client;
+    private S3IndexInput input;
+    private byte[] buffer;
+    private long[] randomPositions;
+
+    @Setup
+    public void setUp() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        s3Client.putObject(PutObjectRequest.builder().bucket(S3Fixtures.BUCKET).key(KEY).build(),
+                RequestBody.fromBytes(S3Fixtures.randomBytes(FILE_SIZE)));
+        client = new S3StorageClient(s3Client,
+                S3Fixtures.config(S3BackupRepositoryConfig.S3_READ_CACHE_SIZE, readCacheSize));
+        input = new S3IndexInput(client.openBlockReader(KEY), KEY);
+        buffer = new byte[S3IndexInput.LOCAL_BUFFER_SIZE];
+        Random random = new Random(42);
+        randomPositions = new long[RANDOM_READS];
+        for (int i = 0; i < RANDOM_READS; i++) {
+            randomPositions[i] = (long) (random.nextDouble() * (FILE_SIZE - Long.BYTES));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        input.close();
+        client.close();
+    }
+
+    @Benchmark
+    public void readBytesSequentially(Blackhole blackhole) throws IOException {
+        input.seek(0);
+        for (long remaining = FILE_SIZE; remaining > 0; remaining -= buffer.length) {
+            int length = (int) Math.min(buffer.length, remaining);
+            input.readBytes(buffer, 0, length);
+            blackhole.consume(buffer);
+        }
+    }
+
+    @Benchmark
+    public long readLongsSequentially() throws IOException {
+        input.seek(0);
+        long sum = 0;
+        for (int i = 0; i < FILE_SIZE / Long.BYTES; i++) {
+            sum += input.readLong();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readLongsAtRandom() throws IOException {
+        long sum = 0;
+        for (long position : randomPositions) {
+            input.seek(position);
+            sum += input.readLong();
+        }
+        return sum;
+    }
+}
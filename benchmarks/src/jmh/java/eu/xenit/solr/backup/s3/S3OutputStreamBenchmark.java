@@ -0,0 +1,93 @@
+package eu.xenit.solr.backup.s3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an object through {@link S3OutputStream} into the in-memory stub, one byte at a time, in
+ * arrays, and from heap or direct buffers. Each operation writes and completes a whole object.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3OutputStreamBenchmark {
+
+    private static final String KEY = "backups/snapshot.1/_0.cfs";
+
+    // Spans two parts of the default part size
+    @Param({"8388608"})
+    public int objectSize;
+
+    @Param({"8192"})
+    public int chunkSize;
+
+    private InMemoryS3Client s3Client;
+    private S3BackupRepositoryConfig config;
+    private BufferPool bufferPool;
+    private byte[] data;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+
+    @Setup
+    public void setUp() {
+        s3Client = new InMemoryS3Client();
+        config = S3Fixtures.config();
+        bufferPool = new BufferPool(config.getBufferPoolSize(), config.getBufferMaxWaitMillis());
+        data = S3Fixtures.randomBytes(objectSize);
+        heapBuffer = ByteBuffer.wrap(data);
+        directBuffer = ByteBuffer.allocateDirect(objectSize);
+        directBuffer.put(data).flip();
+    }
+
+    private S3OutputStream newStream() {
+        return new S3OutputStream(s3Client, KEY, config, objectSize, null, null, bufferPool);
+    }
+
+    @Benchmark
+    public void writeByte() throws IOException {
+        try (S3OutputStream out = newStream()) {
+            for (byte b : data) {
+                out.write(b);
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeArray() throws IOException {
+        try (S3OutputStream out = newStream()) {
+            for (int off = 0; off < objectSize; off += chunkSize) {
+                out.write(data, off, Math.min(chunkSize, objectSize - off));
+            }
+        }
+    }
+
+    @Benchmark
+    public void writeHeapBuffer() throws IOException {
+        try (S3OutputStream out = newStream()) {
+            out.write(heapBuffer.duplicate());
+        }
+    }
+
+    @Benchmark
+    public void writeDirectBuffer() throws IOException {
+        try (S3OutputStream out = newStream()) {
+            out.write(directBuffer.duplicate());
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes directories in the background, one at a time, on a low priority thread and within its
+ * own rate limit, so pruning old backups neither delays nor slows down the backup that triggered
+ * it.
+ *
+ * <p>Every directory waiting to be deleted is recorded in the bucket, under {@link
+ * #PENDING_DELETES_PREFIX}, before the deletion is acknowledged. The record is only removed once
+ * the whole directory is gone, and the deletions recorded are resumed when the first pruner of the
+ * bucket starts in this JVM, so a restart loses none of them. Solr creates a repository, and so a
+ * pruner, for every request and may never close it: its thread times out once idle, and later
+ * pruners do not list the records again.
+ *
+ * <p>The time a record was written is the cutoff of its deletion: keys modified after it are kept,
+ * so a directory created again at the same path, e.g. a backup with the same name, survives the
+ * deletion of the old one.
+ */
+class BackgroundPruner {
+
+    private static final Logger log = LoggerFactory.getLogger(BackgroundPruner.class);
+
+    /**
+     * Prefix of the keys recording the directories to delete, each followed by the path of the
+     * directory without its trailing delimiter.
+     */
+    static final String PENDING_DELETES_PREFIX = ".pending-deletes/";
+
+    // How long closing waits for the directories being deleted, before leaving them to the next start
+    private static final long CLOSE_WAIT_SECONDS = 30;
+
+    // Buckets whose recorded deletions were resumed, or are being resumed, by a pruner of this JVM
+    private static final Set<String> resumedBuckets = ConcurrentHashMap.newKeySet();
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final TokenBucket rateLimiter;
+    private final ExecutorService executor;
+
+    // Cutoff of the directories queued or being deleted, so the same one is not queued twice. A later
+    // request for a directory still pending replaces its cutoff, and is picked up by the pending task.
+    private final Map<String, Instant> pending = new ConcurrentHashMap<>();
+
+    BackgroundPruner(S3Client s3Client, String bucket, TokenBucket rateLimiter) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.rateLimiter = rateLimiter;
+
+        ThreadFactory threadFactory = new DefaultSolrThreadFactory("s3-prune");
+        ThreadPoolExecutor executor = new ExecutorUtil.MDCAwareThreadPoolExecutor(1, 1,
+                S3StorageClient.WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = threadFactory.newThread(runnable);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * Resume, in the background, the deletions that were recorded but not finished, unless another
+     * pruner of this JVM already did for this bucket.
+     */
+    void start() {
+        if (!resumedBuckets.add(bucket)) {
+            return;
+        }
+        executor.execute(() -> {
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(PENDING_DELETES_PREFIX)
+                    .build();
+            try {
+                for (S3Object record : s3Client.listObjectsV2Paginator(request).contents()) {
+                    String path = record.key().substring(PENDING_DELETES_PREFIX.length())
+                            + S3StorageClient.S3_FILE_PATH_DELIMITER;
+                    if (log.isInfoEnabled()) {
+                        log.info("Resuming the deletion of '{}'", path);
+                    }
+                    // right away, as submitting it could be refused once closed
+                    if (enqueue(path, cutoff(record.lastModified()))) {
+                        prune(path);
+                    }
+                }
+            } catch (SdkException e) {
+                resumedBuckets.remove(bucket);
+                log.warn("Could not list the directories left to delete", e);
+            }
+        });
+    }
+
+    /**
+     * Record that a directory is to be deleted, and delete it in the background.
+     *
+     * @param path of the directory, ending with the delimiter.
+     */
+    void schedule(String path) throws S3Exception {
+        String recordKey = recordKey(path);
+        Instant cutoff;
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(recordKey)
+                    .build(), RequestBody.empty());
+            // the time of S3, which the keys of the directory are compared with
+            cutoff = cutoff(s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(recordKey)
+                    .build()).lastModified());
+        } catch (SdkException e) {
+            throw S3StorageClient.handleAmazonException(e);
+        }
+        if (!enqueue(path, cutoff)) {
+            return;
+        }
+        try {
+            executor.execute(() -> prune(path));
+        } catch (RejectedExecutionException e) {
+            // closed: the record is left for the next start
+            resumedBuckets.remove(bucket);
+            pending.remove(path);
+        }
+    }
+
+    /**
+     * @return {@code lastModified}, or the end of time when S3 did not tell when a record was written.
+     */
+    private static Instant cutoff(Instant lastModified) {
+        return lastModified == null ? Instant.MAX : lastModified;
+    }
+
+    /**
+     * Queue the deletion of {@code path} up to {@code cutoff}.
+     *
+     * @return whether the caller is to run {@link #prune}, false when the directory is already pending
+     *     and its task picks up the later cutoff.
+     */
+    private boolean enqueue(String path, Instant cutoff) {
+        boolean[] added = new boolean[1];
+        pending.compute(path, (key, previous) -> {
+            added[0] = previous == null;
+            return previous == null || cutoff.isAfter(previous) ? cutoff : previous;
+        });
+        return added[0];
+    }
+
+    /**
+     * Delete {@code path} up to its pending cutoff, again as long as a later one was requested in the
+     * meantime, then remove its record.
+     */
+    private void prune(String path) {
+        Instant cutoff = pending.get(path);
+        boolean done = false;
+        try {
+            long deleted = 0;
+            while (!done) {
+                deleted += new DirectoryDeletion(s3Client, bucket, path, S3StorageClient.MAX_KEYS_PER_BATCH_DELETE,
+                        1, null, rateLimiter, cutoff).delete();
+                s3Client.deleteObject(DeleteObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(recordKey(path))
+                        .build());
+                done = pending.remove(path, cutoff);
+                cutoff = pending.get(path);
+            }
+            if (log.isInfoEnabled()) {
+                log.info("Deleted {} keys of '{}' in the background", deleted, path);
+            }
+        } catch (IOException | SdkException e) {
+            resumedBuckets.remove(bucket);
+            log.warn("Could not delete '{}' in the background, it is retried at the next start", path, e);
+        } finally {
+            if (!done) {
+                pending.remove(path);
+            }
+        }
+    }
+
+    private static String recordKey(String path) {
+        return PENDING_DELETES_PREFIX + path.substring(0, path.length() - S3StorageClient.S3_FILE_PATH_DELIMITER.length());
+    }
+
+    /**
+     * Let the next pruner resume the recorded deletions, as if it was the first one of this JVM.
+     */
+    @VisibleForTesting
+    static void forgetResumedBuckets() {
+        resumedBuckets.clear();
+    }
+
+    /**
+     * @return the number of directories queued or being deleted.
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Wait a while for the queued directories to be deleted. Those that are not deleted by then are
+     * interrupted, and resumed at the next start.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Interrupting the deletion of {} directories, they are resumed at the next start",
+                        pending.size());
+                resumedBuckets.remove(bucket);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            resumedBuckets.remove(bucket);
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
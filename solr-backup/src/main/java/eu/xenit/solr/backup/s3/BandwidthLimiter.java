@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the bandwidth of the uploads, and separately of the downloads, of all repositories of the
+ * JVM together, so a backup leaves enough network and disk to the queries served by the same node.
+ * The limits apply to the bodies of the requests as the HTTP client sends them, and to the bodies
+ * of the responses as they are read, whichever core or stream they belong to.
+ *
+ * <p>The limiter is published through JMX as {@value #OBJECT_NAME}, where the rates can be changed
+ * at runtime, e.g. opened up at night and lowered during business hours. The rates are configured
+ * with {@code s3.upload.maxBytesPerSecond} and {@code s3.download.maxBytesPerSecond}. As every
+ * repository brings its configuration, a configured rate is only applied when it differs from the
+ * one configured before, so a rate set through JMX is kept until the configuration changes.
+ */
+class BandwidthLimiter implements BandwidthLimiterMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BandwidthLimiter.class);
+
+    static final String OBJECT_NAME = S3Metrics.JMX_DOMAIN + ":type=BandwidthLimiter";
+
+    private static BandwidthLimiter instance;
+
+    private final TokenBucket upload = new TokenBucket(0);
+    private final TokenBucket download = new TokenBucket(0);
+    // Rates of the last configuration, -1 before the first one. Guarded by this.
+    private long configuredUpload = -1;
+    private long configuredDownload = -1;
+
+    /**
+     * @return the limiter of the JVM, published through JMX as soon as it is first used.
+     */
+    static synchronized BandwidthLimiter getInstance() {
+        if (instance == null) {
+            instance = new BandwidthLimiter();
+            instance.register();
+        }
+        return instance;
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, BandwidthLimiterMBean.class), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.warn("Could not publish the bandwidth limiter through JMX", e);
+        }
+    }
+
+    /**
+     * Apply the rates of a repository configuration, unless they are the ones configured before.
+     */
+    synchronized void configure(long uploadBytesPerSecond, long downloadBytesPerSecond) {
+        if (uploadBytesPerSecond != configuredUpload) {
+            configuredUpload = uploadBytesPerSecond;
+            setRate(upload, "Upload", uploadBytesPerSecond);
+        }
+        if (downloadBytesPerSecond != configuredDownload) {
+            configuredDownload = downloadBytesPerSecond;
+            setRate(download, "Download", downloadBytesPerSecond);
+        }
+    }
+
+    private static void setRate(TokenBucket bucket, String direction, long bytesPerSecond) {
+        long rate = Math.max(0, bytesPerSecond);
+        if (rate == bucket.getPermitsPerSecond()) {
+            return;
+        }
+        bucket.setPermitsPerSecond(rate);
+        if (log.isInfoEnabled()) {
+            if (rate == 0) {
+                log.info("{} bandwidth of the S3 backup repositories is not limited", direction);
+            } else {
+                log.info("{} bandwidth of the S3 backup repositories limited to {} bytes/s", direction, rate);
+            }
+        }
+    }
+
+    /**
+     * @return {@code in}, read no faster than the upload rate. For the body of a request.
+     */
+    InputStream throttleUpload(InputStream in) {
+        return new ThrottledInputStream(in, upload);
+    }
+
+    /**
+     * @return {@code in}, read no faster than the download rate. For the body of a response.
+     */
+    InputStream throttleDownload(InputStream in) {
+        return new ThrottledInputStream(in, download);
+    }
+
+    @Override
+    public long getUploadBytesPerSecond() {
+        return upload.getPermitsPerSecond();
+    }
+
+    @Override
+    public synchronized void setUploadBytesPerSecond(long bytesPerSecond) {
+        setRate(upload, "Upload", bytesPerSecond);
+    }
+
+    @Override
+    public long getDownloadBytesPerSecond() {
+        return download.getPermitsPerSecond();
+    }
+
+    @Override
+    public synchronized void setDownloadBytesPerSecond(long bytesPerSecond) {
+        setRate(download, "Download", bytesPerSecond);
+    }
+
+    @Override
+    public long getUploadWaits() {
+        return upload.getWaits();
+    }
+
+    @Override
+    public long getUploadWaitedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(upload.getWaitedNanos());
+    }
+
+    @Override
+    public long getDownloadWaits() {
+        return download.getWaits();
+    }
+
+    @Override
+    public long getDownloadWaitedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(download.getWaitedNanos());
+    }
+
+    @Override
+    public String toString() {
+        return "upload: " + upload + ", download: " + download;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+/**
+ * Bandwidth of the uploads and downloads of all repositories, as published through JMX. The rates
+ * can be changed at runtime. See {@link BandwidthLimiter}.
+ */
+public interface BandwidthLimiterMBean {
+
+    /**
+     * @return the maximum number of bytes uploaded per second, or 0 without limit.
+     */
+    long getUploadBytesPerSecond();
+
+    void setUploadBytesPerSecond(long bytesPerSecond);
+
+    /**
+     * @return the maximum number of bytes downloaded per second, or 0 without limit.
+     */
+    long getDownloadBytesPerSecond();
+
+    void setDownloadBytesPerSecond(long bytesPerSecond);
+
+    /**
+     * @return how many times an upload had to wait for the limit.
+     */
+    long getUploadWaits();
+
+    long getUploadWaitedMillis();
+
+    /**
+     * @return how many times a download had to wait for the limit.
+     */
+    long getDownloadWaits();
+
+    long getDownloadWaitedMillis();
+}
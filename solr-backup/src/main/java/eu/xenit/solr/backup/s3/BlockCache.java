@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Least recently used cache of blocks of S3 objects, shared by every {@link S3IndexInput} of a
+ * client.
+ *
+ * <p>A block is added to the cache as soon as it is requested, before it is loaded, so concurrent
+ * readers of the same block wait for a single request. Blocks are evicted, least recently used
+ * first, when the total size of the cached blocks exceeds the maximum. Blocks can also be loaded in
+ * the background ahead of being read, see {@link #prefetch}.
+ */
+class BlockCache {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockCache.class);
+
+    /**
+     * Loads the content of a block, when it is not cached.
+     */
+    interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private static final class BlockKey {
+        private final String object;
+        private final long index;
+
+        BlockKey(String object, long index) {
+            this.object = object;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return index == other.index && object.equals(other.object);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(object, index);
+        }
+    }
+
+    private static final class Block {
+        private final CompletableFuture<byte[]> content = new CompletableFuture<>();
+        private final int size;
+
+        Block(int size) {
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+
+    // Guarded by this. In access order, so the eldest block is the least recently used one.
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+    private long prefetches;
+
+    /**
+     * @param maxBytes maximum number of bytes held in cached blocks. With 0, every block is loaded
+     *                 each time it is read.
+     */
+    BlockCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the content of a block, loading it with {@code loader} when it is not cached.
+     *
+     * @param object identifies the object and its version, e.g. key and ETag.
+     * @param index  index of the block in the object.
+     * @param size   length of the block.
+     */
+    byte[] get(String object, long index, int size, Loader loader) throws IOException {
+        if (maxBytes <= 0) {
+            synchronized (this) {
+                misses++;
+            }
+            return loader.load();
+        }
+
+        BlockKey key = new BlockKey(object, index);
+        Block block;
+        boolean load = false;
+        synchronized (this) {
+            block = blocks.get(key);
+            if (block == null) {
+                misses++;
+                load = true;
+                block = new Block(size);
+                blocks.put(key, block);
+                cachedBytes += size;
+                evict();
+            } else {
+                hits++;
+            }
+        }
+
+        if (load) {
+            try {
+                block.content.complete(loader.load());
+            } catch (IOException | RuntimeException e) {
+                remove(key, block);
+                block.content.completeExceptionally(e);
+                throw e;
+            }
+        }
+        return await(block);
+    }
+
+    /**
+     * Start loading a block on {@code executor}, unless it is cached or being loaded already. A
+     * block that fails to load is dropped, so the next reader of it tries again.
+     *
+     * @see #get
+     */
+    void prefetch(String object, long index, int size, Loader loader, Executor executor) {
+        if (maxBytes <= 0) {
+            return;
+        }
+
+        BlockKey key = new BlockKey(object, index);
+        Block block;
+        synchronized (this) {
+            if (blocks.containsKey(key)) {
+                return;
+            }
+            prefetches++;
+            block = new Block(size);
+            blocks.put(key, block);
+            cachedBytes += size;
+            evict();
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    block.content.complete(loader.load());
+                } catch (IOException | RuntimeException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Prefetch of block {} of '{}' failed", index, object, e);
+                    }
+                    remove(key, block);
+                    block.content.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            remove(key, block);
+            block.content.completeExceptionally(e);
+        }
+    }
+
+    private static byte[] await(Block block) throws IOException {
+        try {
+            return block.content.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block to be read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new S3Exception(cause);
+        }
+    }
+
+    /**
+     * Evict least recently used blocks until the cache fits, always keeping the most recent one.
+     */
+    private void evict() {
+        Iterator<Block> eldest = blocks.values().iterator();
+        while (cachedBytes > maxBytes && blocks.size() > 1) {
+            Block block = eldest.next();
+            eldest.remove();
+            cachedBytes -= block.size;
+        }
+    }
+
+    private synchronized void remove(BlockKey key, Block block) {
+        if (blocks.remove(key, block)) {
+            cachedBytes -= block.size;
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    void logStatistics() {
+        if (log.isInfoEnabled()) {
+            log.info("Block cache: {}", this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "hits=%d misses=%d prefetches=%d cachedBytes=%d maxBytes=%d",
+                hits, misses, prefetches, cachedBytes, maxBytes);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of heap or direct {@link ByteBuffer}s, shared by all uploads and copies of a repository, so
+ * large buffers are reused across files instead of being allocated for each of them.
+ *
+ * <p>Buffers are pooled in power-of-two size classes. The pool never holds more than its maximum
+ * size in buffers, counting both the idle buffers and the ones lent out. When a buffer can not be
+ * allocated within that limit, {@link #acquire} waits for one to be released. If that takes too
+ * long, a buffer is allocated anyway, so callers holding several buffers can never deadlock.
+ */
+class BufferPool {
+
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_SIZE_CLASS = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int SIZE_CLASSES = 31 - MIN_SIZE_CLASS;
+
+    /**
+     * Pool that allocates a new buffer for each request.
+     */
+    static final BufferPool UNPOOLED = new BufferPool(0, 0);
+
+    private final long maxBytes;
+    private final long maxWaitMillis;
+    // Idle buffers by size class
+    private final List<Deque<ByteBuffer>> heapBuffers = new ArrayList<>(SIZE_CLASSES);
+    private final List<Deque<ByteBuffer>> directBuffers = new ArrayList<>(SIZE_CLASSES);
+
+    private long idleBytes;
+    private long lentBytes;
+    private long hits;
+    private long misses;
+    private long waits;
+
+    /**
+     * @param maxBytes      maximum number of bytes held in buffers. With 0, no buffer is reused.
+     * @param maxWaitMillis how long {@link #acquire} waits for a buffer to be released, when the
+     *                      pool is exhausted.
+     */
+    BufferPool(long maxBytes, long maxWaitMillis) {
+        this.maxBytes = maxBytes;
+        this.maxWaitMillis = maxWaitMillis;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            heapBuffers.add(new ArrayDeque<>());
+            directBuffers.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Get a cleared buffer of at least {@code minCapacity} bytes. It should be handed back with
+     * {@link #release} once it is no longer used.
+     */
+    ByteBuffer acquire(int minCapacity, boolean direct) {
+        int sizeClass = sizeClass(minCapacity);
+        int capacity = 1 << (sizeClass + MIN_SIZE_CLASS);
+        Deque<ByteBuffer> pooled = (direct ? directBuffers : heapBuffers).get(sizeClass);
+
+        synchronized (this) {
+            boolean waited = false;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            while (true) {
+                ByteBuffer buffer = pooled.pollFirst();
+                if (buffer != null) {
+                    hits++;
+                    idleBytes -= capacity;
+                    lentBytes += capacity;
+                    buffer.clear();
+                    return buffer;
+                }
+                if (lentBytes + idleBytes + capacity > maxBytes && idleBytes > 0) {
+                    // make room by dropping idle buffers of other sizes
+                    evictIdleBuffers(lentBytes + idleBytes + capacity - maxBytes);
+                }
+                long remainingNanos = deadline - System.nanoTime();
+                if (maxBytes <= 0 || lentBytes + idleBytes + capacity <= maxBytes
+                        || lentBytes == 0 || remainingNanos <= 0) {
+                    break;
+                }
+                if (!waited) {
+                    waited = true;
+                    waits++;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            misses++;
+            lentBytes += capacity;
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Hand back a buffer obtained from {@link #acquire}. The caller must not use it afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            lentBytes -= capacity;
+            if (lentBytes + idleBytes + capacity <= maxBytes) {
+                idleBytes += capacity;
+                int sizeClass = sizeClass(capacity);
+                (buffer.isDirect() ? directBuffers : heapBuffers).get(sizeClass).addFirst(buffer);
+            }
+            notifyAll();
+        }
+    }
+
+    private void evictIdleBuffers(long bytes) {
+        long evicted = 0;
+        for (int i = SIZE_CLASSES - 1; i >= 0 && evicted < bytes; i--) {
+            evicted += evict(heapBuffers.get(i), bytes - evicted);
+            evicted += evict(directBuffers.get(i), bytes - evicted);
+        }
+        idleBytes -= evicted;
+    }
+
+    private static long evict(Deque<ByteBuffer> buffers, long bytes) {
+        long evicted = 0;
+        while (evicted < bytes && !buffers.isEmpty()) {
+            evicted += buffers.pollFirst().capacity();
+        }
+        return evicted;
+    }
+
+    private static int sizeClass(int capacity) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, MIN_BUFFER_SIZE) - 1);
+        return bits - MIN_SIZE_CLASS;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getWaits() {
+        return waits;
+    }
+
+    synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    synchronized long getLentBytes() {
+        return lentBytes;
+    }
+
+    void logStatistics() {
+        if (log.isInfoEnabled()) {
+            log.info("Buffer pool: {}", this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "hits=%d misses=%d waits=%d idleBytes=%d lentBytes=%d maxBytes=%d",
+                hits, misses, waits, idleBytes, lentBytes, maxBytes);
+    }
+}
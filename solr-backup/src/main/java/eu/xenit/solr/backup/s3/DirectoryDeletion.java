@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes every key under a prefix, while listing it. Each page of the listing is sent as a
+ * {@code DeleteObjects} batch as soon as it arrives, and several batches may be in flight at the
+ * same time, so memory does not grow with the number of keys.
+ *
+ * <p>Directory markers are deleted last, deepest first, so a deletion that fails half-way leaves
+ * the remaining files in directories that still exist.
+ *
+ * <p>With a cutoff, keys last modified after it are left alone, e.g. those of a directory created
+ * again at the same path after its deletion was requested. S3 keeps the modification times to the
+ * second, so the keys modified in the same second as the cutoff are left alone too: garbage may be
+ * left behind, rather than a new backup deleted.
+ */
+class DirectoryDeletion {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryDeletion.class);
+
+    // Returned by S3 servers that do not implement batch deletes
+    private static final int NOT_IMPLEMENTED = 501;
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String prefix;
+    private final int batchSize;
+    private final int parallelBatches;
+    // Deletes batches in the background, or null to delete them in the calling thread
+    private final ExecutorService executor;
+    private final TokenBucket rateLimiter;
+    // Only keys last modified before it, to the second, are deleted, or every key when null
+    private final Instant cutoff;
+
+    // Set once the server turned out not to support DeleteObjects
+    private final AtomicBoolean deleteIndividually = new AtomicBoolean();
+
+    DirectoryDeletion(S3Client s3Client, String bucket, String prefix, int batchSize, int parallelBatches,
+                      ExecutorService executor, TokenBucket rateLimiter, Instant cutoff) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.batchSize = batchSize;
+        this.parallelBatches = executor == null ? 1 : parallelBatches;
+        this.executor = executor;
+        this.rateLimiter = rateLimiter;
+        this.cutoff = cutoff == null ? null : cutoff.truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    /**
+     * @return the number of keys deleted.
+     */
+    long delete() throws IOException {
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .maxKeys(batchSize)
+                .build();
+
+        Deque<Future<Integer>> inFlight = new ArrayDeque<>();
+        List<String> markers = new ArrayList<>();
+        long deleted = 0;
+        boolean success = false;
+        try {
+            // pages are only requested as they are iterated
+            for (ListObjectsV2Response page : s3Client.listObjectsV2Paginator(listRequest)) {
+                List<String> keys = new ArrayList<>(page.contents().size());
+                for (S3Object object : page.contents()) {
+                    if (modifiedAfterCutoff(object)) {
+                        continue;
+                    }
+                    if (object.key().endsWith(S3StorageClient.S3_FILE_PATH_DELIMITER)) {
+                        markers.add(object.key());
+                    } else {
+                        keys.add(object.key());
+                    }
+                }
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                while (inFlight.size() >= parallelBatches) {
+                    deleted += await(inFlight.poll());
+                }
+                rateLimiter.acquire(keys.size());
+                if (executor == null) {
+                    deleted += deleteBatch(keys);
+                } else {
+                    inFlight.add(executor.submit(() -> deleteBatch(keys)));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                deleted += await(inFlight.poll());
+            }
+
+            markers.sort(Comparator.reverseOrder());
+            for (int start = 0; start < markers.size(); start += batchSize) {
+                List<String> keys = markers.subList(start, Math.min(markers.size(), start + batchSize));
+                rateLimiter.acquire(keys.size());
+                deleted += deleteBatch(keys);
+            }
+            success = true;
+        } catch (SdkException e) {
+            throw S3StorageClient.handleAmazonException(e);
+        } finally {
+            if (!success) {
+                cancel(inFlight);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Deleted {} keys under '{}'", deleted, prefix);
+        }
+        return deleted;
+    }
+
+    private boolean modifiedAfterCutoff(S3Object object) {
+        return cutoff != null && object.lastModified() != null && !object.lastModified().isBefore(cutoff);
+    }
+
+    private int deleteBatch(List<String> keys) throws S3Exception {
+        if (!deleteIndividually.get()) {
+            List<ObjectIdentifier> objects = keys.stream()
+                    .map(key -> ObjectIdentifier.builder().key(key).build())
+                    .collect(Collectors.toList());
+            DeleteObjectsRequest request = DeleteObjectsRequest.builder()
+                    .bucket(bucket)
+                    .delete(Delete.builder().objects(objects).build())
+                    .build();
+            try {
+                DeleteObjectsResponse response = s3Client.deleteObjects(request);
+                if (response.hasErrors() && !response.errors().isEmpty()) {
+                    S3Error error = response.errors().get(0);
+                    throw new S3Exception(String.format(Locale.ROOT, "Could not delete %d keys under '%s', e.g. '%s': %s",
+                            response.errors().size(), prefix, error.key(), error.message()));
+                }
+                return response.deleted().size();
+            } catch (AwsServiceException e) {
+                if (e.statusCode() != NOT_IMPLEMENTED) {
+                    throw S3StorageClient.handleAmazonException(e);
+                }
+                deleteIndividually.set(true);
+            } catch (SdkException e) {
+                throw S3StorageClient.handleAmazonException(e);
+            }
+        }
+
+        for (String key : keys) {
+            try {
+                s3Client.deleteObject(DeleteObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build());
+            } catch (SdkException e) {
+                throw new S3Exception("Could not delete object with key: " + key, e);
+            }
+        }
+        return keys.size();
+    }
+
+    private int await(Future<Integer> batch) throws IOException {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deleting '" + prefix + "'");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new S3Exception("Deletion of '" + prefix + "' failed: ", cause);
+        }
+    }
+
+    /**
+     * Cancel the batches that are not being sent yet, and wait for the others, so nothing is
+     * deleted any more once the deletion failed.
+     */
+    private void cancel(Deque<Future<Integer>> batches) {
+        for (Future<Integer> batch : batches) {
+            batch.cancel(false);
+        }
+        for (Future<Integer> batch : batches) {
+            try {
+                batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | CancellationException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Ignoring failed batch of '{}' after failure", prefix, e);
+                }
+            }
+        }
+    }
+}
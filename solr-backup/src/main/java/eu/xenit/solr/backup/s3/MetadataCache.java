@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the metadata of S3 keys, files and directory markers alike, so the same key is
+ * not requested again and again within a backup or restore.
+ *
+ * <p>Every entry is only used for a limited time, since other nodes may write to the same bucket.
+ * The writes and deletes of this client update the cache themselves. When full, the least recently
+ * used key is dropped.
+ *
+ * <p>A key is cached with its metadata once it is known to exist, from a HEAD request or a write.
+ * The keys directly under a directory can also be cached at once from a listing, see {@link
+ * #putListing}, though without their user metadata. The listing itself is remembered for the same
+ * time, and tells which keys of that directory do not exist: for as long as it is, a key of the
+ * directory which is not cached is known to be missing, see {@link #isMissing}. So neither the keys
+ * that exist nor the ones that do not cost a request, and a key created by another node in the
+ * meantime is seen at the latest once the listing expires.
+ */
+class MetadataCache {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataCache.class);
+
+    private static final class CachedMetadata {
+        private final HeadObjectResponse metadata;
+        // False when taken from a listing, which has no user metadata
+        private final boolean complete;
+        private final long expiresAt;
+
+        CachedMetadata(HeadObjectResponse metadata, boolean complete, long expiresAt) {
+            this.metadata = metadata;
+            this.complete = complete;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Listing {
+        // Prefixes of the sub-directories, each ending with the delimiter
+        private final Set<String> subdirectories;
+        private final long expiresAt;
+
+        Listing(Set<String> subdirectories, long expiresAt) {
+            this.subdirectories = subdirectories;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    // Guarded by this. In access order, so the eldest entry is the least recently used one.
+    private final LinkedHashMap<String, CachedMetadata> entries;
+    // Guarded by this. Directories whose keys are all cached, by prefix.
+    private final Map<String, Listing> listings = new HashMap<>();
+    private long hits;
+    private long misses;
+    private long savedRequests;
+
+    /**
+     * @param maxEntries maximum number of keys held.
+     * @param ttlMillis  how long the metadata of a key is used. With 0, nothing is cached.
+     */
+    MetadataCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest) {
+                if (size() > MetadataCache.this.maxEntries) {
+                    // the listing of its directory is no longer complete
+                    forgetListingOf(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the prefix of the directory of {@code key}, ending with the delimiter, or the empty
+     * string for the root.
+     */
+    static String parentOf(String key) {
+        String delimiter = S3StorageClient.S3_FILE_PATH_DELIMITER;
+        int end = key.endsWith(delimiter) ? key.length() - delimiter.length() : key.length();
+        return key.substring(0, key.lastIndexOf(delimiter, end - 1) + 1);
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0 && ttlNanos > 0;
+    }
+
+    /**
+     * @return the metadata of {@code key}, without its user metadata when cached from a listing.
+     * @see #get(String, boolean)
+     */
+    synchronized HeadObjectResponse get(String key) {
+        return get(key, false);
+    }
+
+    /**
+     * @param withUserMetadata whether the user metadata is needed. The keys cached from a listing
+     *                         have none, and are then not used.
+     * @return the metadata of {@code key}, or {@code null} when it is not cached, or no longer. A
+     * hit counts as a saved request.
+     */
+    synchronized HeadObjectResponse get(String key, boolean withUserMetadata) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CachedMetadata entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null || (withUserMetadata && !entry.complete)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        savedRequests++;
+        return entry.metadata;
+    }
+
+    synchronized void put(String key, HeadObjectResponse metadata) {
+        if (isEnabled()) {
+            entries.put(key, new CachedMetadata(metadata, true, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /**
+     * Cache the keys directly under a directory, from a complete listing of it with the delimiter.
+     * Nothing is cached when the listing does not fit in the cache.
+     *
+     * @param prefix         of the directory, ending with the delimiter.
+     * @param objects        the keys directly under it, its own marker included if there is one.
+     * @param subdirectories the common prefixes of the listing.
+     */
+    synchronized void putListing(String prefix, Collection<S3Object> objects, Collection<String> subdirectories) {
+        if (!isEnabled() || objects.size() >= maxEntries) {
+            return;
+        }
+        long expiresAt = System.nanoTime() + ttlNanos;
+        for (S3Object object : objects) {
+            entries.put(object.key(), new CachedMetadata(toMetadata(object), false, expiresAt));
+        }
+        listings.put(prefix, new Listing(new HashSet<>(subdirectories), expiresAt));
+    }
+
+    private static HeadObjectResponse toMetadata(S3Object object) {
+        HeadObjectResponse.Builder metadata = HeadObjectResponse.builder()
+                .contentLength(object.size())
+                .eTag(object.eTag())
+                .lastModified(object.lastModified());
+        if (object.key().endsWith(S3StorageClient.S3_FILE_PATH_DELIMITER)) {
+            metadata.contentType(S3StorageClient.S3_DIR_CONTENT_TYPE);
+        }
+        return metadata.build();
+    }
+
+    /**
+     * @return whether the directory with {@code prefix} was listed, and its keys are cached.
+     */
+    synchronized boolean isListed(String prefix) {
+        return listing(prefix) != null;
+    }
+
+    /**
+     * Tell whether a key that is not cached is known not to exist, because the directory it is in
+     * was listed without it. A directory marker can only be ruled out when the listing found nothing
+     * under the directory either. A {@code true} answer counts as a saved request.
+     */
+    synchronized boolean isMissing(String key) {
+        if (!isEnabled() || entries.containsKey(key)) {
+            return false;
+        }
+        boolean missing;
+        if (listing(key) != null) {
+            // the listing of a directory includes its own marker
+            missing = true;
+        } else {
+            Listing parent = listing(parentOf(key));
+            missing = parent != null && !parent.subdirectories.contains(key);
+        }
+        if (missing) {
+            savedRequests++;
+        }
+        return missing;
+    }
+
+    /**
+     * @return whether a key starts with {@code prefix}, as far as the listing of its parent directory
+     * tells, or {@code null} when that directory was not listed.
+     */
+    synchronized Boolean hasKeysUnder(String prefix) {
+        Listing parent = listing(parentOf(prefix));
+        if (parent == null) {
+            return null;
+        }
+        savedRequests++;
+        return parent.subdirectories.contains(prefix);
+    }
+
+    private Listing listing(String prefix) {
+        Listing listing = listings.get(prefix);
+        if (listing != null && listing.expiresAt - System.nanoTime() <= 0) {
+            listings.remove(prefix);
+            listing = null;
+        }
+        return listing;
+    }
+
+    private void forgetListingOf(String key) {
+        listings.remove(parentOf(key));
+        listings.remove(key);
+    }
+
+    synchronized void invalidate(String key) {
+        entries.remove(key);
+        forgetListingOf(key);
+    }
+
+    /**
+     * Drop every key starting with {@code prefix}, e.g. all keys of a deleted directory.
+     */
+    synchronized void invalidatePrefix(String prefix) {
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+        listings.keySet().removeIf(key -> key.startsWith(prefix));
+        forgetListingOf(prefix);
+    }
+
+    /**
+     * Count a request that was not sent thanks to the cache, other than the lookups of {@link
+     * #get}.
+     */
+    synchronized void requestSaved() {
+        savedRequests++;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of requests that were not sent thanks to the cache.
+     */
+    synchronized long getSavedRequests() {
+        return savedRequests;
+    }
+
+    void logStatistics() {
+        if (log.isInfoEnabled()) {
+            log.info("Metadata cache: {}", this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "hits=%d misses=%d savedRequests=%d entries=%d listings=%d maxEntries=%d",
+                hits, misses, savedRequests, entries.size(), listings.size(), maxEntries);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads an S3 object straight into a local file, with several ranged GET requests at the same
+ * time. Each range is written at its own position in the file, so no range has to wait in memory
+ * for the ones before it.
+ *
+ * <p>The CRC-32 of every range is computed while it is written, and the checksums are combined
+ * once all ranges are done, so the file never needs to be read again to be verified.
+ */
+class ParallelRangeDownload {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelRangeDownload.class);
+
+    // Bytes of a range that are read from the response before they are written to the file
+    private static final int WRITE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Length and checksum of a downloaded object.
+     */
+    static final class Result {
+        private final long length;
+        private final long checksum;
+
+        Result(long length, long checksum) {
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the CRC-32 of the object, without its trailing bytes.
+         */
+        long getChecksum() {
+            return checksum;
+        }
+    }
+
+    private static final class Range {
+        private final long objectLength;
+        private final String eTag;
+        private final long end;
+        private final long checksum;
+        private final long checksummedLength;
+
+        Range(long objectLength, String eTag, long end, long checksum, long checksummedLength) {
+            this.objectLength = objectLength;
+            this.eTag = eTag;
+            this.end = end;
+            this.checksum = checksum;
+            this.checksummedLength = checksummedLength;
+        }
+    }
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final int rangeSize;
+    private final ExecutorService executor;
+    private final BufferPool bufferPool;
+
+    ParallelRangeDownload(S3Client s3Client, String bucket, String key, int rangeSize, ExecutorService executor,
+                          BufferPool bufferPool) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.rangeSize = rangeSize;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Download the object into {@code channel}, at the same positions. The first range is fetched
+     * by the calling thread, to learn the length of the object. The file is then extended to that
+     * length, and the other ranges are fetched concurrently.
+     *
+     * @param trailerLength number of bytes at the end of the object that are not checksummed, like
+     *                      the checksum itself in the footer of a Lucene file.
+     * @param progress      told the length of every range once it is written, from the thread that
+     *                      fetched it.
+     */
+    Result download(FileChannel channel, int trailerLength, LongConsumer progress) throws IOException {
+        Range first = fetchRange(channel, 0, -1, null, trailerLength, progress);
+        long length = first.objectLength;
+        if (first.end < length) {
+            // reserve the whole file, so ranges are written in place
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+
+        List<Future<Range>> ranges = new ArrayList<>();
+        boolean success = false;
+        try {
+            for (long start = first.end; start < length; start += rangeSize) {
+                long rangeStart = start;
+                ranges.add(executor.submit(
+                        () -> fetchRange(channel, rangeStart, length, first.eTag, trailerLength, progress)));
+            }
+            long checksum = first.checksum;
+            for (Future<Range> range : ranges) {
+                Range done = await(range);
+                checksum = Crc32.combine(checksum, done.checksum, done.checksummedLength);
+            }
+            success = true;
+            return new Result(length, checksum);
+        } finally {
+            if (!success) {
+                cancel(ranges);
+            }
+        }
+    }
+
+    /**
+     * Fetch a range and write it at its position.
+     *
+     * @param objectLength length of the object, or -1 when it is not known yet.
+     * @param eTag         version of the object, or null when it is not known yet.
+     */
+    private Range fetchRange(FileChannel channel, long start, long objectLength, String eTag, int trailerLength,
+                             LongConsumer progress) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + start + "-" + (start + rangeSize - 1))
+                // fail rather than mix ranges of two versions of the object
+                .ifMatch(eTag)
+                .build();
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(request)) {
+            GetObjectResponse response = in.response();
+            InputStream body = BandwidthLimiter.getInstance().throttleDownload(in);
+            long length = objectLength >= 0 ? objectLength : ParallelRangeInputStream.objectLength(response, start);
+            long end = start + response.contentLength();
+            long checksumEnd = Math.max(0, length - trailerLength);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = bufferPool.acquire((int) Math.min(WRITE_CHUNK_SIZE, end - start), false);
+            try {
+                long position = start;
+                while (position < end) {
+                    int n = body.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), end - position));
+                    if (n < 0) {
+                        throw new EOFException("Range of '" + key + "' at " + start + " ended after "
+                                + (position - start) + " bytes");
+                    }
+                    if (position < checksumEnd) {
+                        crc.update(buffer.array(), 0, (int) Math.min(n, checksumEnd - position));
+                    }
+                    buffer.clear();
+                    buffer.limit(n);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+            progress.accept(end - start);
+            return new Range(length, response.eTag(), end, crc.getValue(),
+                    Math.max(0, Math.min(end, checksumEnd) - start));
+        } catch (AwsServiceException e) {
+            if (start == 0 && e.statusCode() == ParallelRangeInputStream.RANGE_NOT_SATISFIABLE) {
+                // empty object
+                return new Range(0, null, 0, 0, 0);
+            }
+            throw S3StorageClient.handleAmazonException(e);
+        } catch (SdkException e) {
+            throw S3StorageClient.handleAmazonException(e);
+        }
+    }
+
+    private Range await(Future<Range> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading '" + key + "'");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new S3Exception("Download of '" + key + "' failed: ", cause);
+        }
+    }
+
+    /**
+     * Cancel the ranges that are not being fetched yet, and wait for the others, so nothing is
+     * written to the file once the download failed.
+     */
+    private void cancel(List<Future<Range>> ranges) {
+        for (Future<Range> range : ranges) {
+            range.cancel(false);
+        }
+        for (Future<Range> range : ranges) {
+            try {
+                range.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | CancellationException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Ignoring failed range of '{}' after failure", key, e);
+                }
+            }
+        }
+    }
+}
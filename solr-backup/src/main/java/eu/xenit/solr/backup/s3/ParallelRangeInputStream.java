@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * {@link InputStream} reading an S3 object with several ranged GET requests at the same time. The
+ * ranges are fetched into buffers in the background, and returned in order.
+ *
+ * <p>The length of the object is learned from the response to the first range, so no HEAD request
+ * is needed, and an object smaller than a range costs a single request. So is its ETag, which the
+ * later ranges must match. At most {@code parallelRanges} ranges are fetched ahead of the one being
+ * read.
+ */
+class ParallelRangeInputStream extends InputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelRangeInputStream.class);
+
+    // Returned by S3 for a range starting past the end of the object, as with any range of an empty one
+    static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private static final class Range {
+        private final ByteBuffer data;
+        private final long objectLength;
+        private final String eTag;
+
+        Range(ByteBuffer data, long objectLength, String eTag) {
+            this.data = data;
+            this.objectLength = objectLength;
+            this.eTag = eTag;
+        }
+    }
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final int rangeSize;
+    private final int parallelRanges;
+    private final ExecutorService executor;
+    private final BufferPool bufferPool;
+
+    private final Deque<Future<Range>> inFlight = new ArrayDeque<>();
+    // Length of the object, or -1 until the first range is fetched
+    private long length = -1;
+    // Version of the object, or null until the first range is fetched
+    private String eTag;
+    private long nextRangeStart;
+    private ByteBuffer current;
+    private boolean closed;
+
+    ParallelRangeInputStream(S3Client s3Client, String bucket, String key, int rangeSize, int parallelRanges,
+                             ExecutorService executor, BufferPool bufferPool) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.rangeSize = rangeSize;
+        this.parallelRanges = parallelRanges;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        fetch(0);
+    }
+
+    private void fetch(long start) {
+        nextRangeStart = start + rangeSize;
+        String version = eTag;
+        inFlight.add(executor.submit(() -> fetchRange(start, version)));
+    }
+
+    /**
+     * @param eTag version of the object, or null when it is not known yet.
+     */
+    private Range fetchRange(long start, String eTag) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + start + "-" + (start + rangeSize - 1))
+                // fail rather than mix ranges of two versions of the object
+                .ifMatch(eTag)
+                .build();
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(request)) {
+            GetObjectResponse response = in.response();
+            InputStream body = BandwidthLimiter.getInstance().throttleDownload(in);
+            int size = Math.toIntExact(response.contentLength());
+            ByteBuffer buffer = bufferPool.acquire(size, false);
+            try {
+                int read = 0;
+                while (read < size) {
+                    int n = body.read(buffer.array(), read, size - read);
+                    if (n < 0) {
+                        throw new EOFException("Range of '" + key + "' at " + start + " ended after " + read + " bytes");
+                    }
+                    read += n;
+                }
+                buffer.limit(size);
+            } catch (IOException | RuntimeException e) {
+                bufferPool.release(buffer);
+                throw e;
+            }
+            return new Range(buffer, objectLength(response, start), response.eTag());
+        } catch (AwsServiceException e) {
+            if (start == 0 && e.statusCode() == RANGE_NOT_SATISFIABLE) {
+                ByteBuffer empty = bufferPool.acquire(0, false);
+                empty.limit(0);
+                return new Range(empty, 0, null);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Total length from the Content-Range header, e.g. {@code bytes 0-99/1234}. Without it, the
+     * server ignored the range and returned the whole object.
+     */
+    static long objectLength(GetObjectResponse response, long start) {
+        String contentRange = response.contentRange();
+        if (contentRange == null || contentRange.indexOf('/') < 0) {
+            return start + response.contentLength();
+        }
+        return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+    }
+
+    /**
+     * @return the range being read, with bytes remaining, or {@code null} at the end of the object.
+     */
+    private ByteBuffer current() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                bufferPool.release(current);
+                current = null;
+            }
+            Future<Range> next = inFlight.poll();
+            if (next == null) {
+                return null;
+            }
+            Range range = await(next);
+            current = range.data;
+            if (length < 0) {
+                length = range.objectLength;
+                eTag = range.eTag;
+                if (current.remaining() >= length) {
+                    // the server returned the whole object at once
+                    nextRangeStart = length;
+                }
+            }
+            while (inFlight.size() < parallelRanges && nextRangeStart < length) {
+                fetch(nextRangeStart);
+            }
+        }
+        return current;
+    }
+
+    private Range await(Future<Range> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading '" + key + "'");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SdkException) {
+                throw S3StorageClient.handleAmazonException((SdkException) cause);
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new S3Exception("Download of '" + key + "' failed: ", cause);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer buffer = current();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Ranges that are not being fetched yet are cancelled. The others are awaited, so their buffers
+     * go back to the pool.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<Range> future : inFlight) {
+            if (future.cancel(false)) {
+                continue;
+            }
+            try {
+                bufferPool.release(future.get().data);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | CancellationException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Ignoring failed range of '{}' after close", key, e);
+                }
+            }
+        }
+        inFlight.clear();
+        bufferPool.release(current);
+        current = null;
+    }
+}
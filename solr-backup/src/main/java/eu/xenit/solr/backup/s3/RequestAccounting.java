@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the requests sent by a single client, by operation, into its current {@link
+ * TransferSession}. Every attempt is counted, as every attempt is billed.
+ *
+ * <p>Requests sent while there is no session, like creating the backup directory before its first
+ * file, are kept for the next session.
+ */
+class RequestAccounting implements MetricPublisher {
+
+    // Guarded by this
+    private TransferSession session;
+    private final Map<String, Long> pending = new HashMap<>();
+
+    /**
+     * Count the next requests into {@code session}, starting with the ones sent without a session.
+     *
+     * @param session or {@code null} to keep the next requests for a later session.
+     */
+    synchronized void setSession(TransferSession session) {
+        this.session = session;
+        if (session != null) {
+            pending.forEach(session::countRequests);
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void publish(MetricCollection apiCall) {
+        List<String> operation = apiCall.metricValues(CoreMetric.OPERATION_NAME);
+        if (operation.isEmpty()) {
+            return;
+        }
+        long attempts = Math.max(1, apiCall.children().size());
+        synchronized (this) {
+            if (session != null) {
+                session.countRequests(operation.get(0), attempts);
+            } else {
+                pending.merge(operation.get(0), attempts, Long::sum);
+            }
+        }
+    }
+
+    synchronized Map<String, Long> getPending() {
+        return new HashMap<>(pending);
+    }
+
+    /**
+     * Nothing to release.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -16,26 +16,56 @@
  */
 package eu.xenit.solr.backup.s3;
 
+import eu.xenit.solr.backup.s3.StageProfile.Stage;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import com.google.common.annotations.VisibleForTesting;
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.ChecksumIndexInput;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.util.IOUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.StringUtils;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.DirectoryFactory;
 import org.apache.solr.core.backup.repository.BackupRepository;
@@ -52,15 +82,49 @@ public class S3BackupRepository implements BackupRepository {
 
   private static final int CHUNK_SIZE = 16 * 1024 * 1024; // 16 MBs
   static final String S3_SCHEME = "s3";
+  // User-defined metadata holding the Lucene checksum of a backed up file, in hexadecimal
+  static final String CHECKSUM_METADATA = "lucene-checksum";
 
   private NamedList<?> config;
 
   public void setClient(S3StorageClient client) {
     this.client = client;
+    S3BackupRepositoryConfig configuration = client.getConfiguration();
+    this.uploadScheduler = configuration != null && configuration.getBackupParallelFiles() > 1
+        ? new UploadScheduler(configuration.getBackupParallelFiles(), configuration.getBackupMaxPendingFiles())
+        : null;
+    this.incremental = configuration != null && configuration.isBackupIncremental();
+    this.restoreRetries = configuration == null ? 0 : configuration.getRestoreRetries();
+    this.restoreParallelFiles = configuration == null ? 1 : configuration.getRestoreParallelFiles();
+    this.publishSessions = configuration != null && configuration.isMetricsEnabled();
+    this.sessionIdleMillis = configuration == null
+        ? S3BackupRepositoryConfig.DEFAULT_METRICS_SESSION_IDLE_MILLIS
+        : configuration.getMetricsSessionIdleMillis();
   }
 
   private S3StorageClient client;
 
+  // Only set when copyIndexFilesFrom uploads several files concurrently
+  private UploadScheduler uploadScheduler;
+
+  private boolean incremental;
+
+  // Number of times a file found corrupt after its download is downloaded again
+  private int restoreRetries;
+
+  // Number of files downloaded concurrently by copyIndexFilesTo
+  private int restoreParallelFiles;
+
+  // Progress of the current backup or restore, from its first file until it is finished
+  private TransferSession session;
+
+  private boolean publishSessions;
+
+  private long sessionIdleMillis = S3BackupRepositoryConfig.DEFAULT_METRICS_SESSION_IDLE_MILLIS;
+
+  // Files of earlier backups by file name, listed once per backup directory
+  private final Map<String, Map<String, Map<String, Long>>> backedUpFiles = new HashMap<>();
+
   @Override
   public void init(NamedList args) {
     this.config = args;
@@ -72,7 +136,7 @@ public class S3BackupRepository implements BackupRepository {
     }
 
       try {
-          this.client = backupConfig.buildClient();
+          setClient(backupConfig.buildClient());
       } catch (URISyntaxException e) {
           throw new RuntimeException(e);
       }
@@ -235,7 +299,7 @@ public class S3BackupRepository implements BackupRepository {
       log.debug("Read from S3 '{}'", s3Path);
     }
 
-    return new S3IndexInput(client.pullStream(s3Path), s3Path, client.length(s3Path));
+    return new S3IndexInput(client.openBlockReader(s3Path), s3Path);
   }
 
   @Override
@@ -288,6 +352,13 @@ public class S3BackupRepository implements BackupRepository {
    * Copy an index file from specified <code>sourceDir</code> to the destination repository (i.e.
    * backup).
    *
+   * <p>This returns once the file is in S3. Use {@link #copyIndexFilesFrom} to upload several files
+   * concurrently.
+   *
+   * <p>In incremental mode, a file with the same name, length and checksum in an earlier backup
+   * under the same location is copied within S3 instead. Every backup keeps a complete copy of its
+   * files, so restoring or deleting a backup does not depend on any other one.
+   *
    * @param sourceDir The source directory hosting the file to be copied.
    * @param sourceFileName The name of the file to be copied.
    * @param destFileName The name of the file to  copy to.
@@ -299,6 +370,50 @@ public class S3BackupRepository implements BackupRepository {
   public void copyIndexFileFrom(
       Directory sourceDir, String sourceFileName, URI dest, String destFileName)
       throws IOException {
+    copyIndexFileFrom(sourceDir, sourceFileName, dest, destFileName, null);
+  }
+
+  /**
+   * Copy index files from {@code sourceDir} to the destination repository (i.e. backup), with
+   * {@code s3.backup.parallelFiles} files uploaded concurrently, largest first.
+   *
+   * <p>This returns only once every file is in S3, or once an upload failed and the other pending
+   * uploads are done.
+   *
+   * @param sourceDir The source directory hosting the files to be copied.
+   * @param fileNames The names of the files to be copied, e.g. of a commit point.
+   * @param dest The destination backup location.
+   * @throws IOException when any of the files could not be copied. Failures of other files are added
+   *     as suppressed exceptions.
+   */
+  public void copyIndexFilesFrom(Directory sourceDir, Collection<String> fileNames, URI dest)
+      throws IOException {
+    Objects.requireNonNull(dest, "cannot backup without a valid destination URI");
+    try {
+      for (String fileName : fileNames) {
+        copyIndexFileFrom(sourceDir, fileName, dest, fileName, uploadScheduler);
+      }
+    } catch (IOException | RuntimeException e) {
+      if (uploadScheduler != null) {
+        try {
+          uploadScheduler.awaitCompletion(true);
+        } catch (IOException pending) {
+          e.addSuppressed(pending);
+        }
+      }
+      throw e;
+    }
+    if (uploadScheduler != null) {
+      uploadScheduler.awaitCompletion(true);
+    }
+  }
+
+  /**
+   * @param scheduler runs the upload in the background when not {@code null}. Waiting for it is then
+   *     up to the caller.
+   */
+  private void copyIndexFileFrom(Directory sourceDir, String sourceFileName, URI dest, String destFileName,
+      UploadScheduler scheduler) throws IOException {
     if (StringUtils.isEmpty(sourceFileName)) {
       throw new IllegalArgumentException("must have a valid source file name to copy");
     }
@@ -308,39 +423,350 @@ public class S3BackupRepository implements BackupRepository {
 
     URI filePath = resolve(dest, destFileName);
     String s3Path = getS3Path(filePath);
-    Instant start = Instant.now();
-    if (log.isDebugEnabled()) {
-      log.debug("Upload started to S3 '{}'", s3Path);
+    long length = sourceDir.fileLength(sourceFileName);
+    TransferSession session = session(TransferSession.Kind.BACKUP, started -> estimateCommit(started, sourceDir));
+    session.expectFile(length);
+    StageProfile profile = new StageProfile();
+    long stageStart = System.nanoTime();
+    Long checksum = incremental ? retrieveChecksum(sourceDir, sourceFileName) : null;
+    profile.addSince(Stage.DISK_READ, stageStart);
+    Map<String, String> metadata = checksum == null
+        ? Collections.emptyMap()
+        : Collections.singletonMap(CHECKSUM_METADATA, Long.toHexString(checksum));
+
+    // The source is opened right away, so a scheduled upload reads the file as it was handed over
+    Path localFile = localFile(sourceDir, sourceFileName);
+    if (localFile != null) {
+      FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ);
+      upload(dest, s3Path, length, metadata, channel, session, profile, scheduler,
+          () -> copyLocalIndexFile(channel, localFile.toString(), dest, s3Path, metadata, session, profile));
+    } else {
+      ChecksumIndexInput indexInput =
+          sourceDir.openChecksumInput(sourceFileName, DirectoryFactory.IOCONTEXT_NO_CACHE);
+      upload(dest, s3Path, length, metadata, indexInput, session, profile, scheduler,
+          () -> copyIndexInput(indexInput, dest, s3Path, metadata, session, profile));
     }
+  }
 
-    try (ChecksumIndexInput indexInput =
-        sourceDir.openChecksumInput(sourceFileName, DirectoryFactory.IOCONTEXT_NO_CACHE)) {
-      if (indexInput.length() <= CodecUtil.footerLength()) {
-        throw new CorruptIndexException("file is too small:" + indexInput.length(), indexInput);
+  /**
+   * Estimate a backup from the files of the latest commit of {@code sourceDir}, which is usually
+   * the one being backed up.
+   */
+  private static void estimateCommit(TransferSession session, Directory sourceDir) {
+    try {
+      Collection<String> files = SegmentInfos.readLatestCommit(sourceDir).files(true);
+      long bytes = 0;
+      for (String file : files) {
+        bytes += sourceDir.fileLength(file);
+      }
+      session.estimate(files.size(), bytes);
+    } catch (IOException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("No estimate of backup session {} from {}", session.getName(), sourceDir, e);
       }
+    }
+  }
 
-      client.createDirectory(getS3Path(dest));
-      try (OutputStream outputStream = client.pushStream(s3Path)) {
+  /**
+   * @return the session of the current backup or restore, or a new one when the last one was of
+   *     another kind or is finished. {@code estimate} is only called on a new session.
+   */
+  private synchronized TransferSession session(TransferSession.Kind kind, Consumer<TransferSession> estimate) {
+    if (session == null || session.isFinished() || !session.getKind().equals(kind.name())) {
+      if (session != null) {
+        session.finish();
+      }
+      session = TransferSession.start(kind, publishSessions, sessionIdleMillis);
+      client.setTransferSession(session);
+      estimate.accept(session);
+    }
+    return session;
+  }
 
-        byte[] buffer = new byte[CHUNK_SIZE];
-        int bufferLen;
-        long remaining = indexInput.length() - CodecUtil.footerLength();
+  /**
+   * @return the progress of the current or last backup or restore of this repository, or {@code
+   *     null} when nothing was copied yet.
+   */
+  public synchronized TransferSessionMBean getTransferSession() {
+    return session;
+  }
+
+  private static long retrieveChecksum(Directory directory, String fileName) throws IOException {
+    try (IndexInput input = directory.openInput(fileName, DirectoryFactory.IOCONTEXT_NO_CACHE)) {
+      return CodecUtil.retrieveChecksum(input);
+    }
+  }
 
-        while (remaining > 0) {
-          bufferLen = remaining >= CHUNK_SIZE ? CHUNK_SIZE : (int) remaining;
+  /**
+   * Run {@code upload} right away, or hand it over to {@code scheduler}. When {@code metadata}
+   * holds a checksum, an unchanged copy of the file in an earlier backup is reused instead.
+   *
+   * @param source closed by {@code upload}, or when the upload can not be scheduled.
+   * @param profile time spent in each stage of the upload, added to the session once it is done.
+   */
+  private void upload(URI dest, String s3Path, long length, Map<String, String> metadata,
+      Closeable source, TransferSession session, StageProfile profile, UploadScheduler scheduler,
+      UploadScheduler.Upload upload) throws IOException {
+    UploadScheduler.Upload timedUpload = () -> {
+      Instant start = Instant.now();
+      if (log.isDebugEnabled()) {
+        log.debug("Upload started to S3 '{}'", s3Path);
+      }
 
-          indexInput.readBytes(buffer, 0, bufferLen);
-          outputStream.write(buffer, 0, bufferLen);
-          remaining -= bufferLen;
+      boolean completed = false;
+      try {
+        boolean unchanged;
+        try {
+          unchanged = metadata.containsKey(CHECKSUM_METADATA)
+              && copyUnchangedFile(dest, s3Path, length, metadata, profile);
+        } catch (IOException | RuntimeException e) {
+          // upload is not run, so it does not close the source either
+          IOUtils.closeWhileHandlingException(source);
+          throw e;
+        }
+        if (unchanged) {
+          source.close();
+          session.transferred(length);
+          completed = true;
+          if (log.isInfoEnabled()) {
+            log.info("Unchanged file copied within S3: '{}' in {}ms ({})", s3Path,
+                Duration.between(start, Instant.now()).toMillis(), profile.breakdown());
+          }
+          return;
+        }
+        upload.run();
+        completed = true;
+      } finally {
+        session.getStages().add(profile);
+        // Once its stages are added, as completing the last file finishes the session
+        if (completed) {
+          session.fileCompleted();
         }
-        final long checksum = CodecUtil.checkFooter(indexInput);
-        writeFooter(checksum, outputStream);
       }
+
+      long timeElapsed = Duration.between(start, Instant.now()).toMillis();
+      if (log.isInfoEnabled()) {
+        log.info("Upload to S3: '{}' finished in {}ms ({})", s3Path, timeElapsed, profile.breakdown());
+      }
+    };
+    if (scheduler == null) {
+      timedUpload.run();
+    } else {
+      scheduler.schedule(s3Path, length, source, timedUpload);
     }
+  }
 
-    long timeElapsed = Duration.between(start, Instant.now()).toMillis();
-    if (log.isInfoEnabled()) {
-      log.info("Upload to S3: '{}' finished in {}ms", s3Path, timeElapsed);
+  /**
+   * Look for a file with the same name, length and checksum in the earlier backups under the parent
+   * of {@code dest}, and copy it to {@code s3Path} within S3.
+   *
+   * @return whether such a file was found and copied.
+   */
+  private boolean copyUnchangedFile(URI dest, String s3Path, long length, Map<String, String> metadata,
+      StageProfile profile) throws IOException {
+    long stageStart = System.nanoTime();
+    try {
+      String target = client.sanitizedFilePath(s3Path);
+      String fileName = target.substring(target.lastIndexOf('/') + 1);
+      Map<String, Long> candidates = backedUpFiles(dest).getOrDefault(fileName, Collections.emptyMap());
+      for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+        if (candidate.getValue() != length || candidate.getKey().equals(target)) {
+          continue;
+        }
+        try {
+          if (metadata.get(CHECKSUM_METADATA).equals(client.getUserMetadata(candidate.getKey()).get(CHECKSUM_METADATA))) {
+            client.createDirectory(getS3Path(dest));
+            stageStart = profile.addSince(Stage.METADATA, stageStart);
+            client.copyObject(candidate.getKey(), target, length, metadata);
+            stageStart = profile.addSince(Stage.COPY, stageStart);
+            return true;
+          }
+        } catch (S3NotFoundException e) {
+          // deleted in the meantime
+        }
+      }
+      return false;
+    } finally {
+      profile.addSince(Stage.METADATA, stageStart);
+    }
+  }
+
+  /**
+   * @return every file under the parent of {@code backupDir} when the first file was copied to it,
+   *     by file name, with their length by S3 key.
+   */
+  private synchronized Map<String, Map<String, Long>> backedUpFiles(URI backupDir) throws S3Exception {
+    String s3Path = getS3Path(backupDir);
+    Map<String, Map<String, Long>> files = backedUpFiles.get(s3Path);
+    if (files == null) {
+      URI directory = s3Path.endsWith("/") ? backupDir : URI.create(backupDir + "/");
+      files = new HashMap<>();
+      for (Map.Entry<String, Long> file : client.listFiles(getS3Path(directory.resolve(".."))).entrySet()) {
+        String key = file.getKey();
+        files.computeIfAbsent(key.substring(key.lastIndexOf('/') + 1), name -> new HashMap<>())
+            .put(key, file.getValue());
+      }
+      backedUpFiles.put(s3Path, files);
+    }
+    return files;
+  }
+
+  /**
+   * @return the path of {@code fileName} when it is a file on the local file system, or {@code
+   *     null} when it can only be read through {@code directory}.
+   */
+  private static Path localFile(Directory directory, String fileName) throws IOException {
+    while (directory instanceof FilterDirectory) {
+      if (directory instanceof NRTCachingDirectory
+          && Arrays.asList(((NRTCachingDirectory) directory).listCachedFiles()).contains(fileName)) {
+        // not written to disk yet
+        return null;
+      }
+      directory = ((FilterDirectory) directory).getDelegate();
+    }
+    return directory instanceof FSDirectory ? ((FSDirectory) directory).getDirectory().resolve(fileName) : null;
+  }
+
+  /**
+   * Upload a local index file, read straight into the part buffers of the upload, which are pooled
+   * and direct when configured, so its bytes are copied only once before they are sent. The
+   * checksum is computed over each range as it is read, and the footer is verified before the last
+   * bytes are uploaded, so a corrupt file is never completed in S3.
+   */
+  private void copyLocalIndexFile(FileChannel source, String file, URI dest, String s3Path,
+      Map<String, String> metadata, TransferSession session, StageProfile profile) throws IOException {
+    try (FileChannel channel = source) {
+      long stageStart = System.nanoTime();
+      long length = channel.size();
+      if (length <= CodecUtil.footerLength()) {
+        throw new CorruptIndexException("file is too small:" + length, file);
+      }
+      ByteBuffer footer = readFooter(channel, length, file);
+      // the checksum covers everything but itself
+      long checksummedLength = length - Long.BYTES;
+      stageStart = profile.addSince(Stage.DISK_READ, stageStart);
+
+      client.createDirectory(getS3Path(dest));
+      try (S3OutputStream outputStream = client.pushStream(s3Path, length)) {
+        outputStream.setMetadata(metadata);
+        outputStream.setTransferListener(session::transferred);
+        stageStart = profile.addSince(Stage.METADATA, stageStart);
+        try {
+          CRC32 crc = new CRC32();
+          long position = 0;
+          while (position < length) {
+            ByteBuffer buffer = outputStream.writeBuffer();
+            stageStart = profile.addSince(Stage.UPLOAD_WAIT, stageStart);
+            int start = buffer.position();
+            ByteBuffer target = buffer.duplicate();
+            target.limit((int) Math.min(target.limit(), start + length - position));
+            int read = channel.read(target, position);
+            if (read < 0) {
+              throw new EOFException("read past EOF: " + file);
+            }
+            stageStart = profile.addSince(Stage.DISK_READ, stageStart);
+            if (position < checksummedLength) {
+              ByteBuffer checksummed = buffer.duplicate();
+              checksummed.limit(start + (int) Math.min(read, checksummedLength - position));
+              crc.update(checksummed);
+            }
+            buffer.position(start + read);
+            position += read;
+            if (position == length) {
+              checkFooter(footer, crc.getValue(), file);
+            }
+            stageStart = profile.addSince(Stage.CHECKSUM, stageStart);
+          }
+          outputStream.close();
+          profile.addSince(Stage.UPLOAD_WAIT, stageStart);
+        } catch (IOException | RuntimeException e) {
+          // Never leave a partial or corrupt file behind in the backup
+          outputStream.abort();
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static ByteBuffer readFooter(FileChannel channel, long length, String file) throws IOException {
+    ByteBuffer footer = ByteBuffer.allocate(CodecUtil.footerLength());
+    while (footer.hasRemaining()) {
+      if (channel.read(footer, length - footer.remaining()) < 0) {
+        throw new EOFException("read past EOF: " + file);
+      }
+    }
+    footer.flip();
+    return footer;
+  }
+
+  /**
+   * Same checks as {@link CodecUtil#checkFooter(ChecksumIndexInput)}, on the last bytes of a file.
+   */
+  private static void checkFooter(ByteBuffer footer, long actualChecksum, String resourceDescription)
+      throws CorruptIndexException {
+    int magic = footer.getInt(0);
+    if (magic != CodecUtil.FOOTER_MAGIC) {
+      throw new CorruptIndexException("codec footer mismatch (file truncated?): actual footer="
+          + magic + " vs expected footer=" + CodecUtil.FOOTER_MAGIC, resourceDescription);
+    }
+    int algorithmID = footer.getInt(Integer.BYTES);
+    if (algorithmID != 0) {
+      throw new CorruptIndexException("codec footer mismatch: unknown algorithmID: " + algorithmID,
+          resourceDescription);
+    }
+    long expectedChecksum = footer.getLong(2 * Integer.BYTES);
+    if ((expectedChecksum & 0xFFFFFFFF00000000L) != 0) {
+      throw new CorruptIndexException("Illegal CRC-32 checksum: " + expectedChecksum, resourceDescription);
+    }
+    if (expectedChecksum != actualChecksum) {
+      throw new CorruptIndexException("checksum failed (hardware problem?) : expected="
+          + Long.toHexString(expectedChecksum) + " actual=" + Long.toHexString(actualChecksum),
+          resourceDescription);
+    }
+  }
+
+  private void copyIndexInput(ChecksumIndexInput source, URI dest, String s3Path,
+      Map<String, String> metadata, TransferSession session, StageProfile profile) throws IOException {
+    try (ChecksumIndexInput indexInput = source) {
+      if (indexInput.length() <= CodecUtil.footerLength()) {
+        throw new CorruptIndexException("file is too small:" + indexInput.length(), indexInput);
+      }
+
+      long stageStart = System.nanoTime();
+      client.createDirectory(getS3Path(dest));
+      try (S3OutputStream outputStream = client.pushStream(s3Path, indexInput.length())) {
+        outputStream.setMetadata(metadata);
+        outputStream.setTransferListener(session::transferred);
+        stageStart = profile.addSince(Stage.METADATA, stageStart);
+        long remaining = indexInput.length() - CodecUtil.footerLength();
+        ByteBuffer chunk = client.getBufferPool().acquire((int) Math.min(CHUNK_SIZE, remaining), false);
+        try {
+          byte[] buffer = chunk.array();
+          int chunkSize = Math.min(CHUNK_SIZE, buffer.length);
+          int bufferLen;
+
+          while (remaining > 0) {
+            bufferLen = remaining >= chunkSize ? chunkSize : (int) remaining;
+
+            indexInput.readBytes(buffer, 0, bufferLen);
+            stageStart = profile.addSince(Stage.DISK_READ, stageStart);
+            outputStream.write(buffer, 0, bufferLen);
+            stageStart = profile.addSince(Stage.UPLOAD_WAIT, stageStart);
+            remaining -= bufferLen;
+          }
+          final long checksum = CodecUtil.checkFooter(indexInput);
+          stageStart = profile.addSince(Stage.CHECKSUM, stageStart);
+          writeFooter(checksum, outputStream);
+          outputStream.close();
+          profile.addSince(Stage.UPLOAD_WAIT, stageStart);
+        } catch (IOException | RuntimeException e) {
+          // Never leave a partial or corrupt file behind in the backup
+          outputStream.abort();
+          throw e;
+        } finally {
+          client.getBufferPool().release(chunk);
+        }
+      }
     }
   }
 
@@ -371,34 +797,258 @@ public class S3BackupRepository implements BackupRepository {
 
     URI filePath = resolve(sourceDir, sourceFileName);
     String s3Path = getS3Path(filePath);
+    TransferSession session = session(TransferSession.Kind.RESTORE, started -> estimateBackup(started, sourceDir));
     Instant start = Instant.now();
     if (log.isDebugEnabled()) {
       log.debug("Download started from S3 '{}'", s3Path);
     }
 
-    try (InputStream inputStream = client.pullStream(s3Path);
-        IndexOutput indexOutput = dest.createOutput(destFileName, DirectoryFactory.IOCONTEXT_NO_CACHE)) {
-      byte[] buffer = new byte[CHUNK_SIZE];
-      int len;
-      while ((len = inputStream.read(buffer)) != -1) {
-        indexOutput.writeBytes(buffer, 0, len);
+    StageProfile profile = new StageProfile();
+    try {
+      for (int attempt = 0; ; attempt++) {
+        try {
+          downloadIndexFile(s3Path, dest, destFileName, session, profile);
+          break;
+        } catch (CorruptIndexException | EOFException e) {
+          if (attempt >= restoreRetries) {
+            throw e;
+          }
+          log.warn("Download from S3 '{}' is corrupt, downloading it again", s3Path, e);
+        }
       }
+    } finally {
+      session.getStages().add(profile);
     }
+    session.fileCompleted();
 
     long timeElapsed = Duration.between(start, Instant.now()).toMillis();
 
     if (log.isInfoEnabled()) {
-      log.info("Download from S3 '{}' finished in {}ms", s3Path, timeElapsed);
+      log.info("Download from S3 '{}' finished in {}ms ({})", s3Path, timeElapsed, profile.breakdown());
+    }
+  }
+
+  /**
+   * Copy several index files from {@code sourceDir} to the destination directory (i.e. restore), up
+   * to {@code s3.restore.parallelFiles} files at the same time. Files are started largest first,
+   * so a big file does not end up alone at the end of the restore. Files that fit in a single range
+   * are fetched with a single request, bigger ones with several ranges when configured.
+   *
+   * <p>Every file is attempted, even after another one failed, and the outcome of each file is
+   * logged. This method returns only once all of them are done, so the restored index can be used
+   * right away.
+   *
+   * @param sourceDir The source URI hosting the files to be copied, e.g. a backup.
+   * @param fileNames The names of the files to be copied, e.g. from {@link #listAll}.
+   * @param dest The destination where the files should be copied.
+   * @throws IOException when any of the files could not be copied. The failure of each file is
+   *     added as a suppressed exception.
+   */
+  public void copyIndexFilesTo(URI sourceDir, Collection<String> fileNames, Directory dest)
+      throws IOException {
+    Objects.requireNonNull(sourceDir, "cannot restore without a valid source URI");
+    Instant start = Instant.now();
+
+    // One listing for the lengths of all files, instead of a request for each of them
+    long stageStart = System.nanoTime();
+    Map<String, Long> listed = client.listFiles(getS3Path(sourceDir));
+    Map<String, Long> lengths = new HashMap<>();
+    for (String fileName : fileNames) {
+      String key = client.sanitizedFilePath(getS3Path(resolve(sourceDir, fileName)));
+      lengths.put(fileName, listed.getOrDefault(key, 0L));
+    }
+    long totalLength = lengths.values().stream().mapToLong(Long::longValue).sum();
+    session(TransferSession.Kind.RESTORE, started -> started.estimate(fileNames.size(), totalLength))
+        .getStages().addSince(Stage.METADATA, stageStart);
+    List<String> largestFirst = new ArrayList<>(fileNames);
+    largestFirst.sort(Comparator.<String, Long>comparing(lengths::get).reversed());
+
+    Map<String, IOException> failures = new ConcurrentHashMap<>();
+    if (restoreParallelFiles <= 1 || largestFirst.size() <= 1) {
+      for (String fileName : largestFirst) {
+        restoreFile(sourceDir, fileName, dest, failures);
+      }
+    } else {
+      ExecutorService executor = S3StorageClient.newWorkerPool("s3-file-download",
+          Math.min(restoreParallelFiles, largestFirst.size()));
+      try {
+        List<Future<?>> restores = new ArrayList<>();
+        for (String fileName : largestFirst) {
+          restores.add(executor.submit(() -> restoreFile(sourceDir, fileName, dest, failures)));
+        }
+        for (Future<?> restore : restores) {
+          restore.get();
+        }
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while restoring files from " + sourceDir);
+      } catch (ExecutionException e) {
+        // restoreFile keeps its failures, so only an unexpected error gets here
+        throw new S3Exception("Restore from " + sourceDir + " failed: ", e.getCause());
+      } finally {
+        ExecutorUtil.shutdownAndAwaitTermination(executor);
+      }
+    }
+
+    if (!failures.isEmpty()) {
+      S3Exception e = new S3Exception(String.format(Locale.ROOT, "Restore of %d of %d files from %s failed: %s",
+          failures.size(), fileNames.size(), sourceDir, new TreeSet<>(failures.keySet())));
+      failures.values().forEach(e::addSuppressed);
+      throw e;
+    }
+    if (log.isInfoEnabled()) {
+      log.info("Restored {} files from {} in {}ms", fileNames.size(), sourceDir,
+          Duration.between(start, Instant.now()).toMillis());
+    }
+  }
+
+  /**
+   * Estimate a restore from all the files in {@code sourceDir}, with a single listing.
+   */
+  private void estimateBackup(TransferSession session, URI sourceDir) {
+    long stageStart = System.nanoTime();
+    try {
+      Map<String, Long> files = client.listFiles(getS3Path(sourceDir));
+      session.estimate(files.size(), files.values().stream().mapToLong(Long::longValue).sum());
+      session.getStages().addSince(Stage.METADATA, stageStart);
+    } catch (IOException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("No estimate of restore session {} from {}", session.getName(), sourceDir, e);
+      }
+    }
+  }
+
+  private void restoreFile(URI sourceDir, String fileName, Directory dest, Map<String, IOException> failures) {
+    try {
+      copyIndexFileTo(sourceDir, fileName, dest, fileName);
+    } catch (IOException | RuntimeException e) {
+      log.error("Restore of '{}' from {} failed", fileName, sourceDir, e);
+      failures.put(fileName, e instanceof IOException
+          ? (IOException) e
+          : new S3Exception("Restore of '" + fileName + "' failed: ", e));
+    }
+  }
+
+  /**
+   * Copy a file from S3 to {@code dest}, checking its Lucene footer on the way. The checksum is the
+   * one computed by the {@link IndexOutput} while writing, so the file is read once. Files restored
+   * to the local file system are written in ranges instead, see {@link #downloadLocalIndexFile}.
+   */
+  private void downloadIndexFile(String s3Path, Directory dest, String destFileName, TransferSession session,
+      StageProfile profile) throws IOException {
+    Path localFile = client.isDownloadInRanges() ? localFile(dest, destFileName) : null;
+    if (localFile != null) {
+      downloadLocalIndexFile(s3Path, localFile, session, profile);
+      return;
+    }
+
+    int footerLength = CodecUtil.footerLength();
+    long stageStart = System.nanoTime();
+    try (InputStream inputStream = client.pullStreamInRanges(s3Path)) {
+      stageStart = profile.addSince(Stage.DOWNLOAD_WAIT, stageStart);
+      IndexOutput indexOutput = dest.createOutput(destFileName, DirectoryFactory.IOCONTEXT_NO_CACHE);
+      stageStart = profile.addSince(Stage.DISK_WRITE, stageStart);
+      boolean success = false;
+      ByteBuffer chunk = client.getBufferPool().acquire(CHUNK_SIZE, false);
+      try {
+        byte[] buffer = chunk.array();
+        // The last bytes read are held back at the start of the buffer, until the end of the file
+        // tells whether they are its footer
+        int held = 0;
+        int len;
+        while ((len = inputStream.read(buffer, held, buffer.length - held)) != -1) {
+          stageStart = profile.addSince(Stage.DOWNLOAD_WAIT, stageStart);
+          session.transferred(len);
+          int unwritten = held + len;
+          if (unwritten > footerLength) {
+            // the checksum is computed by the output while writing
+            indexOutput.writeBytes(buffer, 0, unwritten - footerLength);
+            System.arraycopy(buffer, unwritten - footerLength, buffer, 0, footerLength);
+            held = footerLength;
+          } else {
+            held = unwritten;
+          }
+          stageStart = profile.addSince(Stage.DISK_WRITE, stageStart);
+        }
+        stageStart = profile.addSince(Stage.DOWNLOAD_WAIT, stageStart);
+        if (held < footerLength) {
+          throw new CorruptIndexException("file is too small:" + (indexOutput.getFilePointer() + held), s3Path);
+        }
+        // The checksum covers the footer, up to the checksum itself
+        indexOutput.writeBytes(buffer, 0, footerLength - Long.BYTES);
+        stageStart = profile.addSince(Stage.DISK_WRITE, stageStart);
+        checkFooter(ByteBuffer.wrap(buffer, 0, footerLength), indexOutput.getChecksum(), s3Path);
+        stageStart = profile.addSince(Stage.CHECKSUM, stageStart);
+        indexOutput.writeBytes(buffer, footerLength - Long.BYTES, Long.BYTES);
+        success = true;
+      } finally {
+        client.getBufferPool().release(chunk);
+        if (success) {
+          indexOutput.close();
+          profile.addSince(Stage.DISK_WRITE, stageStart);
+        } else {
+          // Never leave a partial or corrupt file behind in the restored index
+          IOUtils.closeWhileHandlingException(indexOutput);
+          IOUtils.deleteFilesIgnoringExceptions(dest, destFileName);
+        }
+      }
+    }
+  }
+
+  /**
+   * Download a file straight to its place on the local file system, bypassing the {@link
+   * IndexOutput} of the directory, so ranges of it can be written concurrently at their position.
+   * The checksums of the ranges are combined and checked against the footer once all are written.
+   */
+  private void downloadLocalIndexFile(String s3Path, Path file, TransferSession session, StageProfile profile)
+      throws IOException {
+    long stageStart = System.nanoTime();
+    FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean success = false;
+    try {
+      // ranges are checksummed and written by the threads downloading them, so it all counts as download
+      ParallelRangeDownload.Result result = client.downloadInRanges(s3Path, channel, Long.BYTES,
+          session::transferred);
+      stageStart = profile.addSince(Stage.DOWNLOAD_WAIT, stageStart);
+      if (result.getLength() < CodecUtil.footerLength()) {
+        throw new CorruptIndexException("file is too small:" + result.getLength(), s3Path);
+      }
+      checkFooter(readFooter(channel, result.getLength(), s3Path), result.getChecksum(), s3Path);
+      stageStart = profile.addSince(Stage.CHECKSUM, stageStart);
+      success = true;
+    } finally {
+      if (success) {
+        channel.close();
+        profile.addSince(Stage.DISK_WRITE, stageStart);
+      } else {
+        // Never leave a partial or corrupt file behind in the restored index
+        IOUtils.closeWhileHandlingException(channel);
+        IOUtils.deleteFilesIgnoringExceptions(file);
+      }
     }
   }
 
   @Override
-  public void close() {
-    client.close();
+  public void close() throws IOException {
+    try {
+      if (uploadScheduler != null) {
+        uploadScheduler.close();
+      }
+    } finally {
+      synchronized (this) {
+        if (session != null) {
+          session.finish();
+        }
+      }
+      client.close();
+    }
   }
 
   /** Return the path to use in S3. */
-  private static String getS3Path(URI uri) {
+  @VisibleForTesting
+  static String getS3Path(URI uri) {
     // Depending on the scheme, the first element may be the host. Following ones are the path
     String host = uri.getHost();
     return host == null ? uri.getPath() : host + uri.getPath();
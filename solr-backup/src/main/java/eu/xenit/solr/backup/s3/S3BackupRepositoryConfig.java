@@ -38,6 +38,51 @@ public class S3BackupRepositoryConfig {
     public static final String S3_PROXY_HOST = "s3.proxy.host";
     public static final String S3_PROXY_PORT = "s3.proxy.port";
     public static final String S3_CLIENT_PROGRESS_LOG_BYTE_INTERVAL = "s3.client.progressLogByteInterval";
+    public static final String S3_UPLOAD_PARALLEL_PARTS = "s3.upload.parallelParts";
+    public static final String S3_UPLOAD_MAX_IN_FLIGHT_BYTES = "s3.upload.maxInFlightBytes";
+    public static final String S3_UPLOAD_PART_SIZE = "s3.upload.partSize";
+    public static final String S3_UPLOAD_TARGET_PART_COUNT = "s3.upload.targetPartCount";
+    public static final String S3_UPLOAD_MAX_BYTES_PER_SECOND = "s3.upload.maxBytesPerSecond";
+    public static final String S3_BUFFER_POOL_SIZE = "s3.buffer.poolSize";
+    public static final String S3_BUFFER_DIRECT = "s3.buffer.direct";
+    public static final String S3_BUFFER_MAX_WAIT_MILLIS = "s3.buffer.maxWaitMillis";
+    public static final String S3_BACKUP_PARALLEL_FILES = "s3.backup.parallelFiles";
+    public static final String S3_BACKUP_MAX_PENDING_FILES = "s3.backup.maxPendingFiles";
+    public static final String S3_BACKUP_INCREMENTAL = "s3.backup.incremental";
+    public static final String S3_DOWNLOAD_PARALLEL_RANGES = "s3.download.parallelRanges";
+    public static final String S3_DOWNLOAD_RANGE_SIZE = "s3.download.rangeSize";
+    public static final String S3_DOWNLOAD_MAX_BYTES_PER_SECOND = "s3.download.maxBytesPerSecond";
+    public static final String S3_READ_BLOCK_SIZE = "s3.read.blockSize";
+    public static final String S3_READ_CACHE_SIZE = "s3.read.cacheSize";
+    public static final String S3_READ_AHEAD_BLOCKS = "s3.read.readAheadBlocks";
+    public static final String S3_RESTORE_RETRIES = "s3.restore.retries";
+    public static final String S3_RESTORE_PARALLEL_FILES = "s3.restore.parallelFiles";
+    public static final String S3_CACHE_TTL_MILLIS = "s3.cache.ttlMillis";
+    public static final String S3_CACHE_MAX_ENTRIES = "s3.cache.maxEntries";
+    public static final String S3_DIRECTORY_IMPLICIT = "s3.directory.implicit";
+    public static final String S3_DELETE_PARALLEL_BATCHES = "s3.delete.parallelBatches";
+    public static final String S3_DELETE_MAX_KEYS_PER_SECOND = "s3.delete.maxKeysPerSecond";
+    public static final String S3_PRUNE_ASYNC = "s3.prune.async";
+    public static final String S3_PRUNE_MAX_KEYS_PER_SECOND = "s3.prune.maxKeysPerSecond";
+    public static final String S3_METRICS_ENABLED = "s3.metrics.enabled";
+    public static final String S3_METRICS_SESSION_IDLE_MILLIS = "s3.metrics.sessionIdleMillis";
+
+    static final int DEFAULT_UPLOAD_MAX_IN_FLIGHT_BYTES = 128 * 1024 * 1024;
+    static final int DEFAULT_UPLOAD_TARGET_PART_COUNT = 1000;
+    // S3 refuses multipart uploads with more parts
+    static final int MAX_UPLOAD_PART_COUNT = 10000;
+    static final int DEFAULT_BUFFER_POOL_SIZE = 256 * 1024 * 1024;
+    static final int DEFAULT_BUFFER_MAX_WAIT_MILLIS = 1000;
+    static final int DEFAULT_BACKUP_MAX_PENDING_FILES = 64;
+    static final int DEFAULT_DOWNLOAD_RANGE_SIZE = 16 * 1024 * 1024;
+    static final int DEFAULT_READ_BLOCK_SIZE = 1024 * 1024;
+    static final int DEFAULT_READ_CACHE_SIZE = 64 * 1024 * 1024;
+    static final int MIN_READ_BLOCK_SIZE = 4 * 1024;
+    static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+    static final int DEFAULT_CACHE_TTL_MILLIS = 60 * 1000;
+    static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    static final int DEFAULT_PRUNE_MAX_KEYS_PER_SECOND = 500;
+    static final int DEFAULT_METRICS_SESSION_IDLE_MILLIS = 5 * 60 * 1000;
 
     private final String bucketName;
 
@@ -59,6 +104,156 @@ public class S3BackupRepositoryConfig {
 
     private final int progressLogByteInterval;
 
+    /**
+     * Maximum number of parts of a single multipart upload that are uploaded concurrently. A value
+     * of 1 (the default) uploads every part from the writing thread.
+     */
+    private final int uploadParallelParts;
+
+    /**
+     * Upper bound on the memory held by part buffers that are waiting for, or busy with, an upload.
+     */
+    private final int uploadMaxInFlightBytes;
+
+    /**
+     * Smallest size of the parts of a multipart upload. Bigger files use a multiple of it.
+     */
+    private final int uploadPartSize;
+
+    /**
+     * Number of parts a file is split into at most, as long as the part size stays within limits.
+     */
+    private final int uploadTargetPartCount;
+
+    /**
+     * Upper bound on the bytes uploaded per second by all repositories of the JVM together. 0 means
+     * no limit. See {@link BandwidthLimiter}.
+     */
+    private final int uploadMaxBytesPerSecond;
+
+    /**
+     * Maximum number of bytes held by the buffers of the shared buffer pool. 0 disables pooling.
+     */
+    private final int bufferPoolSize;
+
+    /**
+     * Whether upload buffers are allocated outside of the heap.
+     */
+    private final boolean bufferPoolDirect;
+
+    /**
+     * How long to wait for a buffer to be released when the pool is exhausted, before allocating one
+     * anyway.
+     */
+    private final int bufferMaxWaitMillis;
+
+    /**
+     * Number of files uploaded concurrently when several files are backed up at once.
+     */
+    private final int backupParallelFiles;
+
+    /**
+     * Number of files that may be waiting for, or busy with, a concurrent upload.
+     */
+    private final int backupMaxPendingFiles;
+
+    /**
+     * Whether files found unchanged in an earlier backup under the same location are copied within
+     * S3 instead of being uploaded again.
+     */
+    private final boolean backupIncremental;
+
+    /**
+     * Number of byte ranges of a file that are downloaded concurrently during a restore. A value of 1
+     * (the default) downloads every file with a single request.
+     */
+    private final int downloadParallelRanges;
+
+    /**
+     * Size of the byte ranges downloaded concurrently.
+     */
+    private final int downloadRangeSize;
+
+    /**
+     * Upper bound on the bytes downloaded per second by all repositories of the JVM together. 0 means
+     * no limit. See {@link BandwidthLimiter}.
+     */
+    private final int downloadMaxBytesPerSecond;
+
+    /**
+     * Size of the blocks fetched with a ranged request when a backed-up file is read with random
+     * access.
+     */
+    private final int readBlockSize;
+
+    /**
+     * Maximum number of bytes held by the cache of blocks read with random access. 0 disables it.
+     */
+    private final int readCacheSize;
+
+    /**
+     * Maximum number of blocks fetched ahead of a sequential reader. 0 disables read-ahead.
+     */
+    private final int readAheadBlocks;
+
+    /**
+     * Number of times a file whose checksum does not match after its download is downloaded again,
+     * before the restore fails.
+     */
+    private final int restoreRetries;
+
+    /**
+     * Number of files downloaded concurrently when several files are restored at once.
+     */
+    private final int restoreParallelFiles;
+
+    /**
+     * How long the metadata of a key, e.g. whether a directory exists, is remembered. 0 disables the
+     * cache.
+     */
+    private final int cacheTtlMillis;
+
+    /**
+     * Maximum number of keys whose metadata is remembered.
+     */
+    private final int cacheMaxEntries;
+
+    /**
+     * Whether directories are plain key prefixes, without marker objects. A directory then exists as
+     * long as a key starts with its path.
+     */
+    private final boolean directoryImplicit;
+
+    /**
+     * Maximum number of batches of keys of a deleted directory that are deleted concurrently.
+     */
+    private final int deleteParallelBatches;
+
+    /**
+     * Upper bound on the rate at which the keys of a directory are deleted. 0 means no limit.
+     */
+    private final int deleteMaxKeysPerSecond;
+
+    /**
+     * Whether directories are deleted in the background, e.g. old backups pruned after a new one.
+     */
+    private final boolean pruneAsync;
+
+    /**
+     * Upper bound on the rate at which keys are deleted in the background. 0 means no limit.
+     */
+    private final int pruneMaxKeysPerSecond;
+
+    /**
+     * Whether the latency and throughput of the requests are measured, and published through JMX.
+     */
+    private final boolean metricsEnabled;
+
+    /**
+     * How long a backup or restore session may make no progress before it is finished and its
+     * summary logged. 0 means sessions only finish once their estimate is completed.
+     */
+    private final int metricsSessionIdleMillis;
 
     public S3BackupRepositoryConfig(NamedList<?> config) {
         region = getStringConfig(config, S3_REGION);
@@ -71,6 +266,39 @@ public class S3BackupRepositoryConfig {
         pathStyleAccessEnabled = getBooleanConfig(config, S3_PATH_STYLE_ACCESS_ENABLED);
         checksumValidationEnabled = getBooleanConfig(config, S3_CLIENT_CHECKSUM_VALIDATION_ENABLED);
         progressLogByteInterval = getIntConfig(config, S3_CLIENT_PROGRESS_LOG_BYTE_INTERVAL);
+        uploadParallelParts = Math.max(1, getIntConfig(config, S3_UPLOAD_PARALLEL_PARTS, 1));
+        uploadMaxInFlightBytes = getIntConfig(config, S3_UPLOAD_MAX_IN_FLIGHT_BYTES, DEFAULT_UPLOAD_MAX_IN_FLIGHT_BYTES);
+        uploadPartSize = Math.min(S3OutputStream.MAX_PART_SIZE,
+                Math.max(S3OutputStream.MIN_PART_SIZE, getIntConfig(config, S3_UPLOAD_PART_SIZE, S3OutputStream.PART_SIZE)));
+        uploadTargetPartCount = Math.min(MAX_UPLOAD_PART_COUNT,
+                Math.max(1, getIntConfig(config, S3_UPLOAD_TARGET_PART_COUNT, DEFAULT_UPLOAD_TARGET_PART_COUNT)));
+        uploadMaxBytesPerSecond = Math.max(0, getIntConfig(config, S3_UPLOAD_MAX_BYTES_PER_SECOND, 0));
+        bufferPoolSize = Math.max(0, getIntConfig(config, S3_BUFFER_POOL_SIZE, DEFAULT_BUFFER_POOL_SIZE));
+        bufferPoolDirect = getBooleanConfig(config, S3_BUFFER_DIRECT);
+        bufferMaxWaitMillis = Math.max(0, getIntConfig(config, S3_BUFFER_MAX_WAIT_MILLIS, DEFAULT_BUFFER_MAX_WAIT_MILLIS));
+        backupParallelFiles = Math.max(1, getIntConfig(config, S3_BACKUP_PARALLEL_FILES, 1));
+        backupMaxPendingFiles = Math.max(1, getIntConfig(config, S3_BACKUP_MAX_PENDING_FILES, DEFAULT_BACKUP_MAX_PENDING_FILES));
+        backupIncremental = getBooleanConfig(config, S3_BACKUP_INCREMENTAL);
+        downloadParallelRanges = Math.max(1, getIntConfig(config, S3_DOWNLOAD_PARALLEL_RANGES, 1));
+        downloadRangeSize = Math.max(BufferPool.MIN_BUFFER_SIZE,
+                getIntConfig(config, S3_DOWNLOAD_RANGE_SIZE, DEFAULT_DOWNLOAD_RANGE_SIZE));
+        downloadMaxBytesPerSecond = Math.max(0, getIntConfig(config, S3_DOWNLOAD_MAX_BYTES_PER_SECOND, 0));
+        readBlockSize = Math.max(MIN_READ_BLOCK_SIZE, getIntConfig(config, S3_READ_BLOCK_SIZE, DEFAULT_READ_BLOCK_SIZE));
+        readCacheSize = Math.max(0, getIntConfig(config, S3_READ_CACHE_SIZE, DEFAULT_READ_CACHE_SIZE));
+        readAheadBlocks = Math.max(0, getIntConfig(config, S3_READ_AHEAD_BLOCKS, DEFAULT_READ_AHEAD_BLOCKS));
+        restoreRetries = Math.max(0, getIntConfig(config, S3_RESTORE_RETRIES, 0));
+        restoreParallelFiles = Math.max(1, getIntConfig(config, S3_RESTORE_PARALLEL_FILES, 1));
+        cacheTtlMillis = Math.max(0, getIntConfig(config, S3_CACHE_TTL_MILLIS, DEFAULT_CACHE_TTL_MILLIS));
+        cacheMaxEntries = Math.max(0, getIntConfig(config, S3_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES));
+        directoryImplicit = getBooleanConfig(config, S3_DIRECTORY_IMPLICIT);
+        deleteParallelBatches = Math.max(1, getIntConfig(config, S3_DELETE_PARALLEL_BATCHES, 1));
+        deleteMaxKeysPerSecond = Math.max(0, getIntConfig(config, S3_DELETE_MAX_KEYS_PER_SECOND, 0));
+        pruneAsync = getBooleanConfig(config, S3_PRUNE_ASYNC);
+        pruneMaxKeysPerSecond = Math.max(0,
+                getIntConfig(config, S3_PRUNE_MAX_KEYS_PER_SECOND, DEFAULT_PRUNE_MAX_KEYS_PER_SECOND));
+        metricsEnabled = getBooleanConfig(config, S3_METRICS_ENABLED, true);
+        metricsSessionIdleMillis = Math.max(0,
+                getIntConfig(config, S3_METRICS_SESSION_IDLE_MILLIS, DEFAULT_METRICS_SESSION_IDLE_MILLIS));
     }
 
     /**
@@ -91,10 +319,14 @@ public class S3BackupRepositoryConfig {
     }
 
     private static int getIntConfig(NamedList<?> config, String property) {
+        return getIntConfig(config, property, 0);
+    }
+
+    private static int getIntConfig(NamedList<?> config, String property, int defaultValue) {
         String envProp = System.getenv().get(toEnvVar(property));
         if (envProp == null) {
             Object configProp = config.get(property);
-            return configProp instanceof Integer ? (int) configProp : 0;
+            return configProp instanceof Integer ? (int) configProp : defaultValue;
         } else {
             return Integer.parseInt(envProp);
         }
@@ -104,10 +336,14 @@ public class S3BackupRepositoryConfig {
      * If the property as any other value than 'true' or 'TRUE', this will default to false.
      */
     private static boolean getBooleanConfig(NamedList<?> config, String property) {
+        return getBooleanConfig(config, property, false);
+    }
+
+    private static boolean getBooleanConfig(NamedList<?> config, String property, boolean defaultValue) {
         String envProp = System.getenv().get(toEnvVar(property));
         if (envProp == null) {
             Boolean configProp = config.getBooleanArg(property);
-            return configProp != null && configProp;
+            return configProp == null ? defaultValue : configProp;
         } else {
             return Boolean.parseBoolean(envProp);
         }
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads bytes at any position of a single version of an S3 object, one block at a time, with ranged
+ * GET requests. Blocks go through the {@link BlockCache} of the client, so reading the same bytes
+ * again, or reading the rest of a block, costs no request.
+ *
+ * <p>While a file is read sequentially, the next blocks are fetched in the background ahead of the
+ * reader, see {@link ReadAhead}.
+ *
+ * <p>Instances are immutable, and shared by an {@link S3IndexInput} and all of its clones and
+ * slices.
+ */
+class S3BlockReader {
+
+    /**
+     * Read-ahead window of a single reader. It grows, up to a maximum number of blocks, while the
+     * reader keeps reading the block it is in or the next one, and it halves at every jump.
+     */
+    static final class ReadAhead {
+        private final int maxBlocks;
+        // Block the reader is expected to read next when reading sequentially
+        private long nextBlock;
+        private int window;
+
+        ReadAhead(int maxBlocks, long nextBlock) {
+            this.maxBlocks = maxBlocks;
+            this.nextBlock = nextBlock;
+        }
+
+        /**
+         * @return the number of blocks to fetch after {@code lastBlock}.
+         */
+        int onRead(long firstBlock, long lastBlock) {
+            if (firstBlock == nextBlock || firstBlock == nextBlock - 1) {
+                window = Math.min(maxBlocks, Math.max(1, 2 * window));
+            } else {
+                window /= 2;
+            }
+            nextBlock = lastBlock + 1;
+            return window;
+        }
+
+        int window() {
+            return window;
+        }
+    }
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    // Key and ETag, so a cached block of an overwritten object is never returned
+    private final String version;
+    private final long length;
+    private final int blockSize;
+    private final BlockCache cache;
+    private final int readAheadBlocks;
+    // Fetches blocks ahead of the readers, or null when read-ahead is disabled
+    private final Executor readAheadExecutor;
+
+    S3BlockReader(S3Client s3Client, String bucket, String key, String eTag, long length, int blockSize,
+                  BlockCache cache, int readAheadBlocks, Executor readAheadExecutor) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = eTag;
+        this.version = key + '#' + eTag;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.cache = cache;
+        this.readAheadBlocks = readAheadExecutor == null ? 0 : readAheadBlocks;
+        this.readAheadExecutor = readAheadExecutor;
+    }
+
+    /**
+     * @return a new read-ahead window, for a reader that starts at {@code position}.
+     */
+    ReadAhead newReadAhead(long position) {
+        return new ReadAhead(readAheadBlocks, position / blockSize);
+    }
+
+    /**
+     * @return the length of the object.
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Read {@code len} bytes starting at {@code position} of the object, and fetch the blocks after
+     * them in the background when {@code readAhead} says so.
+     */
+    void read(long position, byte[] b, int off, int len, ReadAhead readAhead) throws IOException {
+        if (position < 0 || position + len > length) {
+            throw new EOFException("read past EOF: pos=" + position + " len=" + len + " vs length=" + length
+                    + ": " + key);
+        }
+        if (len > 0 && readAheadBlocks > 0) {
+            long lastBlock = (position + len - 1) / blockSize;
+            int window = readAhead.onRead(position / blockSize, lastBlock);
+            for (long index = lastBlock + 1; index <= lastBlock + window && index * blockSize < length; index++) {
+                long start = index * blockSize;
+                int size = (int) Math.min(blockSize, length - start);
+                cache.prefetch(version, index, size, () -> fetch(start, size), readAheadExecutor);
+            }
+        }
+        while (len > 0) {
+            long index = position / blockSize;
+            int offsetInBlock = (int) (position - index * blockSize);
+            byte[] block = block(index);
+            int n = Math.min(len, block.length - offsetInBlock);
+            System.arraycopy(block, offsetInBlock, b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private byte[] block(long index) throws IOException {
+        long start = index * blockSize;
+        int size = (int) Math.min(blockSize, length - start);
+        return cache.get(version, index, size, () -> fetch(start, size));
+    }
+
+    private byte[] fetch(long start, int size) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .range("bytes=" + start + "-" + (start + size - 1))
+                // fail rather than mix blocks of two versions of the object
+                .ifMatch(eTag)
+                .build();
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(request)) {
+            InputStream body = BandwidthLimiter.getInstance().throttleDownload(in);
+            byte[] block = new byte[size];
+            int read = 0;
+            while (read < size) {
+                int n = body.read(block, read, size - read);
+                if (n < 0) {
+                    throw new EOFException("Block of '" + key + "' at " + start + " ended after " + read + " bytes");
+                }
+                read += n;
+            }
+            return block;
+        } catch (SdkException ase) {
+            throw S3StorageClient.handleAmazonException(ase);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -17,79 +17,48 @@
 package eu.xenit.solr.backup.s3;
 
 import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IndexInput;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.util.Locale;
 
+/**
+ * {@link IndexInput} over a file in S3, with random access. Bytes are read with ranged requests
+ * through the block cache of the client, so seeking backward, cloning and slicing are cheap, and a
+ * backed-up commit can be opened by Lucene in place. While reading sequentially, the next blocks
+ * are fetched ahead of time.
+ */
 class S3IndexInput extends BufferedIndexInput {
 
     static final int LOCAL_BUFFER_SIZE = 16 * 1024;
 
-    private final InputStream inputStream;
+    private final S3BlockReader reader;
+    // Start and length of this input in the object, which differ from the whole object for a slice
+    private final long offset;
     private final long length;
+    // Not shared with clones, which read on their own
+    private S3BlockReader.ReadAhead readAhead;
 
-    private long position;
+    S3IndexInput(S3BlockReader reader, String path) {
+        this("S3IndexInput(path=\"" + path + "\")", reader, 0, reader.length());
+    }
 
-    S3IndexInput(InputStream inputStream, String path, long length) {
-        super(path);
+    private S3IndexInput(String resourceDescription, S3BlockReader reader, long offset, long length) {
+        super(resourceDescription, LOCAL_BUFFER_SIZE);
 
-        this.inputStream = inputStream;
+        this.reader = reader;
+        this.offset = offset;
         this.length = length;
+        this.readAhead = reader.newReadAhead(offset);
     }
 
     @Override
     protected void readInternal(byte[] b, int offset, int length) throws IOException {
-        ByteBuffer bf = ByteBuffer.wrap(b, offset, length);
-        readInternal(bf);
-    }
-
-    protected void readInternal(ByteBuffer b) throws IOException {
-
-        int expectedLength = b.remaining();
-
-        byte[] localBuffer;
-        if (b.hasArray()) {
-            localBuffer = b.array();
-        } else {
-            localBuffer = new byte[LOCAL_BUFFER_SIZE];
-        }
-
-        // We have no guarantee we read all the requested bytes from the underlying InputStream
-        // in a single call. Loop until we reached the requested number of bytes.
-        while (b.hasRemaining()) {
-            int read;
-
-            if (b.hasArray()) {
-                read = inputStream.read(localBuffer, b.arrayOffset() + b.position(), b.remaining());
-            } else {
-                read = inputStream.read(localBuffer, 0, Math.min(b.remaining(), LOCAL_BUFFER_SIZE));
-            }
-
-            // Abort if we can't read any more data
-            if (read < 0) {
-                break;
-            }
-
-            if (b.hasArray()) {
-                b.position(b.position() + read);
-            } else {
-                b.put(localBuffer, 0, read);
-            }
-        }
-
-        if (b.remaining() > 0) {
-            throw new IOException(
-                    String.format(
-                            Locale.ROOT,
-                            "Failed to read %d bytes; only %d available",
-                            expectedLength,
-                            (expectedLength - b.remaining())));
+        long position = getFilePointer();
+        if (position + length > this.length) {
+            throw new EOFException("read past EOF: " + this);
         }
-
-        position += expectedLength;
+        reader.read(this.offset + position, b, offset, length, readAhead);
     }
 
     @Override
@@ -98,25 +67,23 @@ class S3IndexInput extends BufferedIndexInput {
             throw new EOFException(
                     "read past EOF: pos=" + toPosition + " vs length=" + length() + ": " + this);
         }
+        // Nothing else to do: the next read starts at the file pointer
+    }
 
-        // If we seek forward, skip unread bytes
-        while (this.position < toPosition) {
-            long skipped = inputStream.skip(toPosition - this.position);
-            if (skipped == 0) {
-                // If we didn't skip any bytes, make sure we are not at the end of the file
-                if (inputStream.read() == -1) {
-                    // We are at the end of the file
-                    break;
-                } else {
-                    // Not at the end of the file, and we did skip one byte with the read()
-                    skipped = 1;
-                }
-            }
-            this.position += skipped;
-        }
-        if (this.position > toPosition) {
-            throw new IOException("Cannot seek backward");
+    @Override
+    public S3IndexInput clone() {
+        S3IndexInput clone = (S3IndexInput) super.clone();
+        clone.readAhead = reader.newReadAhead(offset + getFilePointer());
+        return clone;
+    }
+
+    @Override
+    public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset
+                    + ",length=" + length + ",fileLength=" + this.length + ": " + this);
         }
+        return new S3IndexInput(getFullSliceDescription(sliceDescription), reader, this.offset + offset, length);
     }
 
     @Override
@@ -124,8 +91,10 @@ class S3IndexInput extends BufferedIndexInput {
         return length;
     }
 
+    /**
+     * Nothing to release: blocks belong to the cache of the client, and clones share the reader.
+     */
     @Override
-    public void close() throws IOException {
-        this.inputStream.close();
+    public void close() {
     }
 }
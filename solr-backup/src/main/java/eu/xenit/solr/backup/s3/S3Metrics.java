@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpHeaders;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of the requests sent to S3, for every client of the JVM.
+ *
+ * <p>The S3 clients report to it as a {@link MetricPublisher}, once per API call, and as an {@link
+ * ExecutionInterceptor}, once per HTTP request. So every request is measured, whichever part of the
+ * repository sends it, at the cost of a few counters. The metrics live in the shared Dropwizard
+ * registry {@value #REGISTRY_NAME}, the library Solr metrics are built on, and are published as
+ * JMX MBeans in the domain {@value #JMX_DOMAIN}:
+ * <ul>
+ *     <li>{@code requests.<operation>}: latency and rate of the calls, e.g. {@code
+ *     requests.UploadPart}, retries included</li>
+ *     <li>{@code failures.<operation>}: calls that failed in the end</li>
+ *     <li>{@code retries} and {@code throttled}: attempts that were retried, and the ones S3 turned
+ *     down with {@code SlowDown} or a similar response</li>
+ *     <li>{@code bytes.sent} and {@code bytes.received}: bytes of the bodies of the requests and of
+ *     the responses</li>
+ * </ul>
+ */
+class S3Metrics implements MetricPublisher, ExecutionInterceptor {
+
+    static final String REGISTRY_NAME = "solr.backup.s3";
+    static final String JMX_DOMAIN = "eu.xenit.solr.backup.s3";
+
+    // Error type of the SDK for responses asking to slow down, see SdkErrorType
+    private static final String THROTTLING_ERROR_TYPE = "Throttling";
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private static S3Metrics instance;
+
+    private final MetricRegistry registry;
+    private final Meter retries;
+    private final Meter throttled;
+    private final Meter bytesSent;
+    private final Meter bytesReceived;
+
+    S3Metrics(MetricRegistry registry) {
+        this.registry = registry;
+        this.retries = registry.meter("retries");
+        this.throttled = registry.meter("throttled");
+        this.bytesSent = registry.meter("bytes.sent");
+        this.bytesReceived = registry.meter("bytes.received");
+    }
+
+    /**
+     * @return the metrics of the JVM, published through JMX as soon as they are first used.
+     */
+    static synchronized S3Metrics getInstance() {
+        if (instance == null) {
+            MetricRegistry registry = SharedMetricRegistries.getOrCreate(REGISTRY_NAME);
+            JmxReporter.forRegistry(registry)
+                    .inDomain(JMX_DOMAIN)
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .convertRatesTo(TimeUnit.SECONDS)
+                    .build()
+                    .start();
+            instance = new S3Metrics(registry);
+        }
+        return instance;
+    }
+
+    MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Record an API call, with all its attempts.
+     */
+    @Override
+    public void publish(MetricCollection apiCall) {
+        String operation = first(apiCall.metricValues(CoreMetric.OPERATION_NAME));
+        Duration duration = first(apiCall.metricValues(CoreMetric.API_CALL_DURATION));
+        if (operation == null) {
+            return;
+        }
+        if (duration != null) {
+            registry.timer("requests." + operation).update(duration.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (Boolean.FALSE.equals(first(apiCall.metricValues(CoreMetric.API_CALL_SUCCESSFUL)))) {
+            registry.meter("failures." + operation).mark();
+        }
+        Integer retryCount = first(apiCall.metricValues(CoreMetric.RETRY_COUNT));
+        if (retryCount != null && retryCount > 0) {
+            retries.mark(retryCount);
+        }
+        for (MetricCollection attempt : apiCall.children()) {
+            Integer status = first(attempt.metricValues(HttpMetric.HTTP_STATUS_CODE));
+            if (THROTTLING_ERROR_TYPE.equals(first(attempt.metricValues(CoreMetric.ERROR_TYPE)))
+                    || status != null && (status == SERVICE_UNAVAILABLE || status == TOO_MANY_REQUESTS)) {
+                throttled.mark();
+            }
+        }
+    }
+
+    private static <T> T first(List<T> values) {
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        bytesSent.mark(contentLength(context.httpRequest()));
+    }
+
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+        bytesReceived.mark(contentLength(context.httpResponse()));
+    }
+
+    private static long contentLength(SdkHttpHeaders headers) {
+        return headers.firstMatchingHeader("Content-Length").map(Long::parseLong).orElse(0L);
+    }
+
+    Timer requests(String operation) {
+        return registry.timer("requests." + operation);
+    }
+
+    Meter getRetries() {
+        return retries;
+    }
+
+    Meter getThrottled() {
+        return throttled;
+    }
+
+    Meter getBytesSent() {
+        return bytesSent;
+    }
+
+    Meter getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Shared by every client, so it stays open when one of them is closed.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -26,17 +26,25 @@ import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
 import software.amazon.awssdk.services.s3.model.CompletedPart;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 /**
  * Implementation is adapted from
@@ -45,6 +53,24 @@ import java.util.function.Consumer;
  *
  * <p>More recent versions of the kafka-connect-storage-cloud implementation use the CCL license,
  * but this class was based off of the ASLv2 version.
+ *
+ * <p>A multipart upload is only started once the first part is full. Smaller content is sent with
+ * a single PutObject request when the stream is closed.
+ *
+ * <p>When the length of the content is known up front, the part size is the smallest power-of-two
+ * multiple of the configured part size that keeps the number of parts below the configured target,
+ * and the buffer is never bigger than the content. When the length is unknown, the buffer starts
+ * small and the part size doubles every tenth of the target part count, so very large content
+ * still stays below the S3 limit of 10,000 parts.
+ *
+ * <p>When an {@link ExecutorService} is provided, full parts are handed over to it and uploaded
+ * while the caller keeps on writing. The number of parts in flight per stream is bounded by the
+ * pool size, and the memory held by their buffers by a budget shared between all streams.
+ *
+ * <p>Buffers are taken from, and handed back to, a {@link BufferPool} shared by the streams of a
+ * repository. Content written with {@link #write(ByteBuffer)} is uploaded without being copied
+ * into a buffer whenever a whole part, or the rest of the content, can be taken from it at once.
+ * Content can also be read straight into the buffer of the stream, see {@link #writeBuffer()}.
  */
 public class S3OutputStream extends OutputStream {
     private static final Logger log = LoggerFactory.getLogger(S3OutputStream.class);
@@ -53,39 +79,185 @@ public class S3OutputStream extends OutputStream {
     // https://docs.aws.amazon.com/AmazonS3/latest/dev/qfacts.html
     static final int PART_SIZE = 16777216;
     static final int MIN_PART_SIZE = 5242880;
+    // S3 accepts up to 5 GB, but a part has to fit in a single buffer
+    static final int MAX_PART_SIZE = 1 << 30;
+    // Initial buffer size when the length of the content is unknown
+    static final int MIN_BUFFER_SIZE = BufferPool.MIN_BUFFER_SIZE;
+    private static final String CONTENT_TYPE = "application/octet-stream";
 
     private final S3Client s3Client;
     private final String key;
     private volatile boolean closed;
-    private final ByteBuffer buffer;
+    // Allocated on first use. May also be borrowed from the caller, see write(ByteBuffer)
+    private ByteBuffer buffer;
+    private boolean bufferBorrowed;
     private MultipartUpload multiPartUpload;
     private final S3BackupRepositoryConfig configuration;
 
+    private final ExecutorService executor;
+    private final Semaphore inFlightParts;
+    private final Semaphore bufferBudget;
+    private final BufferPool bufferPool;
+    private final boolean directBuffers;
+    // Number of bytes of the buffer that may be used. The pool may hand out larger buffers.
+    private int bufferSize;
+
+    // Total length of the content, or -1 if unknown
+    private final long expectedLength;
+    private int partSize;
+    private long bytesUploaded;
+    private Map<String, String> metadata = Collections.emptyMap();
+    // Told the size of every part, or of the whole object, once it is uploaded
+    private LongConsumer transferListener = bytes -> { };
+
     public S3OutputStream(S3Client s3Client, String key, S3BackupRepositoryConfig configuration) {
+        this(s3Client, key, configuration, -1, null, null, null);
+    }
+
+    /**
+     * @param expectedLength total number of bytes that will be written, or -1 if unknown.
+     * @param executor     pool uploading parts in the background, or {@code null} to upload them
+     *                     from the writing thread.
+     * @param bufferBudget bytes that may be held by buffers of parts in flight, shared between
+     *                     streams. Only used together with {@code executor}.
+     * @param bufferPool   pool to take buffers from, or {@code null} to allocate them.
+     */
+    public S3OutputStream(S3Client s3Client, String key, S3BackupRepositoryConfig configuration,
+                          long expectedLength, ExecutorService executor, Semaphore bufferBudget,
+                          BufferPool bufferPool) {
         this.s3Client = s3Client;
         this.configuration = configuration;
         this.key = key;
         this.closed = false;
-        this.buffer = ByteBuffer.allocate(PART_SIZE);
+        this.expectedLength = expectedLength;
+        this.partSize = expectedLength < 0
+                ? configuration.getUploadPartSize()
+                : partSizeFor(expectedLength, configuration.getUploadPartSize(), configuration.getUploadTargetPartCount());
+        this.bytesUploaded = 0;
+        this.bufferPool = bufferPool == null ? BufferPool.UNPOOLED : bufferPool;
+        this.directBuffers = configuration.isBufferPoolDirect();
         this.multiPartUpload = null;
+        this.executor = executor;
+        this.inFlightParts = executor == null ? null : new Semaphore(configuration.getUploadParallelParts());
+        this.bufferBudget = bufferBudget;
 
         if (log.isDebugEnabled()) {
             log.debug("Created S3OutputStream for bucketName '{}' key '{}'", this.configuration.getBucketName(), key);
         }
     }
 
+    /**
+     * Smallest power-of-two multiple of {@code basePartSize} that uploads {@code length} bytes in at
+     * most {@code targetPartCount} parts, limited to {@link #MAX_PART_SIZE}.
+     */
+    static int partSizeFor(long length, int basePartSize, int targetPartCount) {
+        long size = basePartSize;
+        while (size < MAX_PART_SIZE && length > 0 && (length - 1) / size + 1 > targetPartCount) {
+            size *= 2;
+        }
+        return (int) Math.min(size, MAX_PART_SIZE);
+    }
+
+    int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * Set the user-defined metadata of the object. Must be called before anything is written.
+     */
+    void setMetadata(Map<String, String> metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Report the bytes of every part, or of the single request, once S3 has them. Must be called
+     * before anything is written. Parts uploaded in the background report from their own thread.
+     */
+    void setTransferListener(LongConsumer transferListener) {
+        this.transferListener = transferListener;
+    }
+
+    int getBufferCapacity() {
+        if (buffer == null) {
+            buffer = allocateBuffer();
+        }
+        return bufferSize;
+    }
+
+    private ByteBuffer allocateBuffer() {
+        long remaining = expectedLength - bytesUploaded;
+        int size = expectedLength >= 0 && remaining > 0
+                ? (int) Math.min(partSize, remaining)
+                : Math.min(partSize, MIN_BUFFER_SIZE);
+        return acquireBuffer(size);
+    }
+
+    private ByteBuffer acquireBuffer(int size) {
+        ByteBuffer acquired = bufferPool.acquire(size, directBuffers);
+        acquired.limit(size);
+        bufferSize = size;
+        return acquired;
+    }
+
+    private void releaseBuffer() {
+        if (!bufferBorrowed) {
+            bufferPool.release(buffer);
+        }
+        buffer = null;
+        bufferBorrowed = false;
+    }
+
+    private int bufferedBytes() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    /**
+     * Make sure there is a buffer of this stream to copy written bytes into.
+     */
+    private void ensureBuffer() {
+        if (buffer == null) {
+            buffer = allocateBuffer();
+        } else if (bufferBorrowed) {
+            ByteBuffer borrowed = buffer;
+            buffer = acquireBuffer(partSize);
+            bufferBorrowed = false;
+            borrowed.flip();
+            buffer.put(borrowed);
+        }
+    }
+
+    /**
+     * Called when the buffer is full: grow it up to the part size, or upload it as a part. In the
+     * latter case, there is no buffer afterwards.
+     */
+    private void makeRoom() throws IOException {
+        if (bufferSize < partSize) {
+            ByteBuffer previous = buffer;
+            buffer = acquireBuffer((int) Math.min(partSize, Math.max(MIN_BUFFER_SIZE, 2L * bufferSize)));
+            previous.flip();
+            buffer.put(previous);
+            if (!bufferBorrowed) {
+                bufferPool.release(previous);
+            }
+            bufferBorrowed = false;
+        } else {
+            uploadPart(false);
+        }
+    }
+
     @Override
     public void write(int b) throws IOException {
         if (closed) {
             throw new IOException("Stream closed");
         }
 
-        buffer.put((byte) b);
-
-        // If the buffer is now full, push it to remote S3.
+        ensureBuffer();
+        // If the buffer is full, make room, possibly by pushing it to remote S3.
         if (!buffer.hasRemaining()) {
-            uploadPart(false);
+            makeRoom();
+            ensureBuffer();
         }
+        buffer.put((byte) b);
     }
 
     @Override
@@ -100,19 +272,75 @@ public class S3OutputStream extends OutputStream {
             return;
         }
 
+        ensureBuffer();
         int currentOffset = off;
         int lenRemaining = len;
-        while (buffer.remaining() < lenRemaining) {
-            int firstPart = buffer.remaining();
-            buffer.put(b, currentOffset, firstPart);
-            uploadPart(false);
+        while (lenRemaining > 0) {
+            if (!buffer.hasRemaining()) {
+                makeRoom();
+                ensureBuffer();
+            }
+            int chunk = Math.min(buffer.remaining(), lenRemaining);
+            buffer.put(b, currentOffset, chunk);
+
+            currentOffset += chunk;
+            lenRemaining -= chunk;
+        }
+    }
+
+    /**
+     * Write the remaining bytes of {@code data}. Whole parts, and the rest of the content when the
+     * expected length is known, are uploaded straight from {@code data} instead of being copied
+     * into a buffer, so its content must not change until the stream is closed.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (data.hasRemaining()) {
+            int size = Math.min(partSize, data.remaining());
+            boolean restOfContent = expectedLength >= 0 && bytesUploaded + size == expectedLength;
+            if (bufferedBytes() == 0 && (size == partSize || restOfContent)) {
+                releaseBuffer();
+                buffer = data.slice();
+                buffer.limit(size).position(size);
+                bufferBorrowed = true;
+                bufferSize = size;
+                data.position(data.position() + size);
+                if (!restOfContent) {
+                    uploadPart(false);
+                }
+                // else uploaded by close(), once it is known no more bytes will follow
+            } else if (buffer != null && !buffer.hasRemaining()) {
+                makeRoom();
+            } else {
+                ensureBuffer();
+                ByteBuffer chunk = data.slice();
+                chunk.limit(Math.min(buffer.remaining(), chunk.remaining()));
+                buffer.put(chunk);
+                data.position(data.position() + chunk.limit());
+            }
+        }
+    }
 
-            currentOffset += firstPart;
-            lenRemaining -= firstPart;
+    /**
+     * @return the buffer of this stream the next bytes are written to, with room for at least one
+     *     byte. Bytes put into it, e.g. read from a file channel, are written to the stream. A full
+     *     buffer is grown or uploaded first, so the last bytes put into it are only uploaded by a
+     *     later call, or by {@link #close()}.
+     */
+    ByteBuffer writeBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
         }
-        if (lenRemaining > 0) {
-            buffer.put(b, currentOffset, lenRemaining);
+
+        ensureBuffer();
+        if (!buffer.hasRemaining()) {
+            makeRoom();
+            ensureBuffer();
         }
+        return buffer;
     }
 
     private static boolean outOfRange(int off, int len) {
@@ -121,7 +349,7 @@ public class S3OutputStream extends OutputStream {
 
     private void uploadPart(boolean isLastPart) throws IOException {
 
-        int size = buffer.position();
+        int size = bufferedBytes();
 
         if (size == 0) {
             // nothing to upload
@@ -135,21 +363,40 @@ public class S3OutputStream extends OutputStream {
             multiPartUpload = newMultipartUpload();
         }
         try {
-            multiPartUpload.uploadPart(new ByteArrayInputStream(buffer.array()), size);
-        } catch (Exception e) {
-            if (multiPartUpload != null) {
-                multiPartUpload.abort();
-                if (log.isDebugEnabled()) {
-                    log.debug("Multipart upload aborted for bucketName '{}' key '{}'.", this.configuration.getBucketName(), key);
-                }
+            if (executor == null) {
+                multiPartUpload.uploadPart(buffer, size);
+            } else {
+                multiPartUpload.uploadPartAsync(buffer, size, !bufferBorrowed);
+                // the buffer now belongs to the part upload
+                buffer = null;
+                bufferBorrowed = false;
             }
+        } catch (Exception e) {
+            abort();
             throw new S3Exception("Part upload failed: ", e);
         }
+        bytesUploaded += size;
+
+        if (expectedLength < 0 && multiPartUpload.lastPartNumber % partsPerPartSize() == 0) {
+            partSize = (int) Math.min(MAX_PART_SIZE, 2L * partSize);
+        }
 
-        // reset the buffer for eventual next write operation
-        buffer.clear();
+        if (executor == null && !bufferBorrowed) {
+            // reset the buffer for eventual next write operation
+            buffer.clear();
+            buffer.limit(bufferSize);
+        } else {
+            // a new buffer is allocated when there is something to write
+            releaseBuffer();
+        }
     }
 
+    /**
+     * Number of parts after which the part size doubles when the content length is unknown.
+     */
+    private int partsPerPartSize() {
+        return Math.max(1, configuration.getUploadTargetPartCount() / 10);
+    }
     @Override
     public void flush() throws IOException {
         if (closed) {
@@ -158,7 +405,7 @@ public class S3OutputStream extends OutputStream {
 
         // Flush is possible only if we have more data than the required part size
         // If buffer size is lower than than, just skip
-        if (buffer.position() >= MIN_PART_SIZE) {
+        if (bufferedBytes() >= MIN_PART_SIZE) {
             uploadPart(false);
         }
     }
@@ -169,15 +416,100 @@ public class S3OutputStream extends OutputStream {
             return;
         }
 
+        if (multiPartUpload == null) {
+            // Everything fits in a single part: one PutObject instead of a multipart upload
+            try {
+                putObject();
+            } finally {
+                releaseBuffer();
+                closed = true;
+            }
+            return;
+        }
+
         // flush first
         uploadPart(true);
 
         if (multiPartUpload != null) {
-            multiPartUpload.complete();
+            try {
+                multiPartUpload.complete();
+            } catch (IOException | RuntimeException e) {
+                abort();
+                throw e;
+            }
             multiPartUpload = null;
         }
 
+        releaseBuffer();
+        closed = true;
+    }
+
+    /**
+     * Discard everything written so far: parts still waiting for an upload are skipped, and the
+     * multipart upload is aborted once the parts being uploaded are done, so no object is created.
+     * The stream is closed afterwards.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
         closed = true;
+        releaseBuffer();
+        if (multiPartUpload != null) {
+            multiPartUpload.abort();
+            multiPartUpload = null;
+            if (log.isDebugEnabled()) {
+                log.debug("Multipart upload aborted for bucketName '{}' key '{}'.", this.configuration.getBucketName(), key);
+            }
+        }
+    }
+
+    private void putObject() throws IOException {
+        int size = bufferedBytes();
+        if (log.isDebugEnabled()) {
+            log.debug("Single put of {} bytes for bucketName '{}' key '{}'", size, this.configuration.getBucketName(), key);
+        }
+        PutObjectRequest request =
+                PutObjectRequest.builder()
+                        .bucket(this.configuration.getBucketName())
+                        .key(key)
+                        .contentLength((long) size)
+                        .metadata(metadata)
+                        .build();
+        try {
+            s3Client.putObject(request, size == 0 ? RequestBody.empty() : requestBody(buffer, size));
+            transferListener.accept(size);
+        } catch (SdkException e) {
+            throw S3StorageClient.handleAmazonException(e);
+        }
+    }
+
+    /**
+     * Request body reading the first {@code size} bytes of {@code data}. Every attempt of the
+     * request reads them again, so retries do not need to buffer a copy. They are read within the
+     * upload bandwidth of the JVM, see {@link BandwidthLimiter}.
+     */
+    private RequestBody requestBody(ByteBuffer data, int size) {
+        ByteBuffer content = data.duplicate();
+        content.position(0).limit(size);
+        return RequestBody.fromContentProvider(
+                () -> BandwidthLimiter.getInstance().throttleUpload(
+                        new ProgressTrackingInputStream(new ByteBufferInputStream(content), newProgressListener())),
+                size, CONTENT_TYPE);
+    }
+
+    private Consumer<Long> newProgressListener() {
+        return new Consumer<>() {
+            private Long lastCheckpointBytes = 0L;
+
+            @Override
+            public void accept(Long totalBytesTransferred) {
+                if (totalBytesTransferred - lastCheckpointBytes >= configuration.getProgressLogByteInterval()) {
+                    log.debug("Progress: {} bytes", totalBytesTransferred);
+                    lastCheckpointBytes = totalBytesTransferred;
+                }
+            }
+        };
     }
 
     private MultipartUpload newMultipartUpload() throws IOException {
@@ -185,6 +517,7 @@ public class S3OutputStream extends OutputStream {
                 CreateMultipartUploadRequest.builder()
                         .bucket(this.configuration.getBucketName())
                         .key(key)
+                        .metadata(metadata)
                         .build();
         try {
             return new MultipartUpload(s3Client.createMultipartUpload(initRequest).uploadId());
@@ -196,10 +529,17 @@ public class S3OutputStream extends OutputStream {
     private class MultipartUpload {
         private final String uploadId;
         private final List<CompletedPart> partETags;
+        private final List<Future<?>> inFlight;
+        private int lastPartNumber;
+        private volatile Throwable failure;
+        private volatile boolean aborted;
 
         public MultipartUpload(String uploadId) {
             this.uploadId = uploadId;
-            this.partETags = new ArrayList<>();
+            // parts uploaded in the background complete in any order
+            this.partETags = Collections.synchronizedList(new ArrayList<>());
+            this.inFlight = new ArrayList<>();
+            this.lastPartNumber = 0;
             if (log.isDebugEnabled()) {
                 log.debug(
                         "Initiated multi-part upload for bucketName '{}' key '{}' with id '{}'",
@@ -209,22 +549,92 @@ public class S3OutputStream extends OutputStream {
             }
         }
 
-        void uploadPart(ByteArrayInputStream inputStream, int partSize) {
-            int currentPartNumber = partETags.size() + 1;
+        void uploadPart(ByteBuffer partBuffer, int partSize) {
+            uploadPart(partBuffer, partSize, ++lastPartNumber);
+        }
 
-            Consumer<Long> progressListener = new Consumer<>() {
-                private Long lastCheckpointBytes = 0L;
+        /**
+         * Upload the content of {@code partBuffer} from the executor. Blocks while this stream has
+         * the maximum number of parts in flight, or while the shared buffer budget is exhausted. Once
+         * this returns, the buffer belongs to the upload task, which hands it back to the pool when
+         * {@code pooled}.
+         */
+        void uploadPartAsync(ByteBuffer partBuffer, int partSize, boolean pooled) throws IOException {
+            throwIfFailed();
+            int currentPartNumber = ++lastPartNumber;
+            int reserved = Math.min(partBuffer.capacity(), configuration.getUploadMaxInFlightBytes());
+            try {
+                inFlightParts.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a part upload slot");
+            }
+            try {
+                if (bufferBudget != null) {
+                    bufferBudget.acquire(reserved);
+                }
+            } catch (InterruptedException e) {
+                inFlightParts.release();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for part buffer memory");
+            }
 
-                @Override
-                public void accept(Long totalBytesTransferred) {
-                    if (totalBytesTransferred - lastCheckpointBytes >= configuration.getProgressLogByteInterval()) {
-                        log.debug("Progress: {} bytes", totalBytesTransferred);
-                        lastCheckpointBytes = totalBytesTransferred;
-                    }
+            Runnable releasePermits = () -> {
+                if (bufferBudget != null) {
+                    bufferBudget.release(reserved);
                 }
+                inFlightParts.release();
             };
-            InputStream trackedStream = new ProgressTrackingInputStream(inputStream, progressListener);
-            RequestBody body = RequestBody.fromInputStream(trackedStream, partSize);
+            try {
+                inFlight.add(executor.submit(() -> {
+                    try {
+                        // parts still waiting when the upload gets aborted are skipped
+                        if (!aborted) {
+                            uploadPart(partBuffer, partSize, currentPartNumber);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                        throw e;
+                    } finally {
+                        if (pooled) {
+                            bufferPool.release(partBuffer);
+                        }
+                        releasePermits.run();
+                    }
+                    return null;
+                }));
+            } catch (RuntimeException e) {
+                releasePermits.run();
+                throw e;
+            }
+        }
+
+        private void throwIfFailed() throws S3Exception {
+            Throwable t = failure;
+            if (t != null) {
+                throw new S3Exception("Part upload failed for key '" + key + "': ", t);
+            }
+        }
+
+        /**
+         * Wait for all parts handed over to the executor. Fails as soon as one of them failed.
+         */
+        private void awaitInFlight() throws IOException {
+            for (Future<?> future : inFlight) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for part uploads");
+                } catch (ExecutionException e) {
+                    throw new S3Exception("Part upload failed for key '" + key + "': ", e.getCause());
+                }
+            }
+            inFlight.clear();
+        }
+
+        private void uploadPart(ByteBuffer partBuffer, int partSize, int currentPartNumber) {
+            RequestBody body = requestBody(partBuffer, partSize);
 
             UploadPartRequest request =
                     UploadPartRequest.builder()
@@ -244,15 +654,19 @@ public class S3OutputStream extends OutputStream {
                     .eTag(response.eTag())
                     .build();
             partETags.add(part);
+            transferListener.accept(partSize);
         }
 
         /**
          * To be invoked when closing the stream to mark upload is done.
          */
-        void complete() {
+        void complete() throws IOException {
+            awaitInFlight();
             if (log.isDebugEnabled()) {
                 log.debug("Completing multi-part upload for key '{}', id '{}'", key, uploadId);
             }
+            List<CompletedPart> parts = new ArrayList<>(partETags);
+            parts.sort(Comparator.comparing(CompletedPart::partNumber));
             CompleteMultipartUploadRequest completeRequest =
                     CompleteMultipartUploadRequest.builder()
                             .bucket(configuration.getBucketName())
@@ -260,7 +674,7 @@ public class S3OutputStream extends OutputStream {
                             .uploadId(uploadId)
                             .multipartUpload(
                                     CompletedMultipartUpload.builder()
-                                            .parts(partETags)
+                                            .parts(parts)
                                             .build())
                             .build();
             s3Client.completeMultipartUpload(completeRequest);
@@ -270,6 +684,19 @@ public class S3OutputStream extends OutputStream {
             if (log.isWarnEnabled()) {
                 log.warn("Aborting multi-part upload with id '{}'", uploadId);
             }
+            // Parts being uploaded still use their buffer, and could otherwise reappear after the abort
+            aborted = true;
+            for (Future<?> future : inFlight) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    // already reported by the part that failed
+                }
+            }
+            inFlight.clear();
             try {
                 s3Client.abortMultipartUpload(AbortMultipartUploadRequest
                         .builder()
@@ -20,11 +20,14 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import org.apache.commons.io.input.ClosedInputStream;
 import org.apache.solr.common.StringUtils;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.awscore.client.builder.AwsSyncClientBuilder;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
@@ -36,7 +39,13 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.Delete;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
@@ -52,21 +61,35 @@ import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 
@@ -84,28 +107,119 @@ class S3StorageClient {
     static final String S3_FILE_PATH_DELIMITER = "/";
 
     // S3 has a hard limit of 1000 keys per batch delete request
-    private static final int MAX_KEYS_PER_BATCH_DELETE = 1000;
+    static final int MAX_KEYS_PER_BATCH_DELETE = 1000;
 
     // Metadata name used to identify flag directory entries in S3
-    private static final String S3_DIR_CONTENT_TYPE = "application/x-directory";
+    static final String S3_DIR_CONTENT_TYPE = "application/x-directory";
 
     // Error messages returned by S3 for a key not found.
     private static final Set<String> NOT_FOUND_CODES = Set.of("NoSuchKey", "404 Not Found");
 
+    // S3 refuses to copy bigger objects with a single CopyObject request
+    private static final long MAX_COPY_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+
+    // Idle worker threads are released after this delay, so an unclosed client does not pin them
+    static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
     private final S3Client s3Client;
     private final S3BackupRepositoryConfig configuration;
 
+    // Only set when parts of a multipart upload may be uploaded concurrently
+    private final ExecutorService uploadExecutor;
+    private final Semaphore uploadBufferBudget;
+
+    // Only set when ranges of a file may be downloaded concurrently
+    private final ExecutorService downloadExecutor;
+
+    // Buffers shared by every upload and copy of this client
+    private final BufferPool bufferPool;
+
+    // Blocks of files read with random access, shared by every S3IndexInput of this client
+    private final BlockCache blockCache;
+
+    // Only set when blocks are fetched ahead of sequential readers
+    private final ExecutorService readAheadExecutor;
+
+    // Metadata of the keys known to exist, directory markers included
+    private final MetadataCache metadataCache;
+
+    // Without directory markers, the directories created by this client and not deleted since. Unlike
+    // the cache, they do not expire: nothing else tells they exist until a file is written in them.
+    private final Set<String> implicitDirectories = ConcurrentHashMap.newKeySet();
+
+    // Only set when batches of keys of a directory may be deleted concurrently
+    private final ExecutorService deleteExecutor;
+    private final TokenBucket deleteRateLimiter;
+
+    // Only set when directories are deleted in the background
+    private final BackgroundPruner pruner;
+
+    // Told every request of the internal client when metrics are enabled
+    private final RequestAccounting requestAccounting;
+
     S3StorageClient(S3BackupRepositoryConfig config) throws URISyntaxException {
-        this(createInternalClient(config), config);
+        this(config, new RequestAccounting());
+    }
+
+    private S3StorageClient(S3BackupRepositoryConfig config, RequestAccounting requestAccounting)
+            throws URISyntaxException {
+        this(createInternalClient(config, requestAccounting), config, requestAccounting);
     }
 
     @VisibleForTesting
     S3StorageClient(S3Client s3Client, S3BackupRepositoryConfig configuration) {
+        this(s3Client, configuration, new RequestAccounting());
+    }
+
+    private S3StorageClient(S3Client s3Client, S3BackupRepositoryConfig configuration,
+                            RequestAccounting requestAccounting) {
         this.s3Client = s3Client;
         this.configuration = configuration;
+        this.requestAccounting = requestAccounting;
+        BandwidthLimiter.getInstance().configure(configuration.getUploadMaxBytesPerSecond(),
+                configuration.getDownloadMaxBytesPerSecond());
+        if (configuration.getUploadParallelParts() > 1) {
+            this.uploadExecutor = newWorkerPool("s3-part-upload", configuration.getUploadParallelParts());
+            this.uploadBufferBudget = new Semaphore(configuration.getUploadMaxInFlightBytes());
+        } else {
+            this.uploadExecutor = null;
+            this.uploadBufferBudget = null;
+        }
+        this.downloadExecutor = configuration.getDownloadParallelRanges() > 1
+                ? newWorkerPool("s3-range-download", configuration.getDownloadParallelRanges())
+                : null;
+        this.bufferPool = new BufferPool(configuration.getBufferPoolSize(), configuration.getBufferMaxWaitMillis());
+        this.blockCache = new BlockCache(configuration.getReadCacheSize());
+        this.readAheadExecutor = configuration.getReadAheadBlocks() > 0 && configuration.getReadCacheSize() > 0
+                ? newWorkerPool("s3-read-ahead", configuration.getReadAheadBlocks())
+                : null;
+        this.metadataCache = new MetadataCache(configuration.getCacheMaxEntries(), configuration.getCacheTtlMillis());
+        this.deleteExecutor = configuration.getDeleteParallelBatches() > 1
+                ? newWorkerPool("s3-batch-delete", configuration.getDeleteParallelBatches())
+                : null;
+        this.deleteRateLimiter = new TokenBucket(configuration.getDeleteMaxKeysPerSecond());
+        if (configuration.isPruneAsync()) {
+            this.pruner = new BackgroundPruner(s3Client, configuration.getBucketName(),
+                    new TokenBucket(configuration.getPruneMaxKeysPerSecond()));
+            this.pruner.start();
+        } else {
+            this.pruner = null;
+        }
+    }
+
+    /**
+     * Thread pool with a fixed upper bound of worker threads, whose threads time out when idle.
+     */
+    static ExecutorService newWorkerPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ExecutorUtil.MDCAwareThreadPoolExecutor(
+                threads, threads, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DefaultSolrThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
-    private static S3Client createInternalClient(S3BackupRepositoryConfig config) throws URISyntaxException {
+    private static S3Client createInternalClient(S3BackupRepositoryConfig config, RequestAccounting requestAccounting)
+            throws URISyntaxException {
 
         S3ClientBuilder clientBuilder = S3Client.builder();
 
@@ -122,7 +236,13 @@ class S3StorageClient {
         }
         clientBuilder.httpClientBuilder(httpClientBuilder);
 
-        clientBuilder.overrideConfiguration(ClientOverrideConfiguration.builder().build());
+        ClientOverrideConfiguration.Builder overrideConfiguration = ClientOverrideConfiguration.builder();
+        if (config.isMetricsEnabled()) {
+            S3Metrics metrics = S3Metrics.getInstance();
+            overrideConfiguration.addMetricPublisher(metrics).addExecutionInterceptor(metrics)
+                    .addMetricPublisher(requestAccounting);
+        }
+        clientBuilder.overrideConfiguration(overrideConfiguration.build());
 
         if (!(StringUtils.isEmpty(config.getAccessKey()) || StringUtils.isEmpty(config.getSecretKey()))) {
             clientBuilder.credentialsProvider(
@@ -147,6 +267,20 @@ class S3StorageClient {
     void createDirectory(String path) throws S3Exception {
         path = sanitizedDirPath(path);
 
+        if (metadataCache.get(path) != null) {
+            // known to exist already, so neither its parent needs to be checked nor its marker written
+            metadataCache.requestSaved();
+            return;
+        }
+
+        if (configuration.isDirectoryImplicit()) {
+            // nothing to write: the directory exists once a file is written in it. Until then, only
+            // this client knows about it.
+            implicitDirectories.add(path);
+            metadataCache.put(path, directoryMetadata(null));
+            return;
+        }
+
         if (!parentDirectoryExist(path)) {
             createDirectory(getParentDirectory(path));
             // TODO see https://issues.apache.org/jira/browse/SOLR-15359
@@ -160,12 +294,21 @@ class S3StorageClient {
                     .contentType(S3_DIR_CONTENT_TYPE)
                     .metadata(Collections.singletonMap("Content-Type", S3_DIR_CONTENT_TYPE))
                     .build();
-            s3Client.putObject(putRequest, RequestBody.empty());
+            PutObjectResponse response = s3Client.putObject(putRequest, RequestBody.empty());
+            metadataCache.put(path, directoryMetadata(response.eTag()));
         } catch (SdkException ase) {
             throw handleAmazonException(ase);
         }
     }
 
+    private static HeadObjectResponse directoryMetadata(String eTag) {
+        return HeadObjectResponse.builder()
+                .contentType(S3_DIR_CONTENT_TYPE)
+                .contentLength(0L)
+                .eTag(eTag)
+                .build();
+    }
+
     /**
      * Delete files from S3. Deletion order is not guaranteed.
      *
@@ -189,22 +332,30 @@ class S3StorageClient {
     }
 
     /**
-     * Delete directory, all the files and sub-directories from S3.
+     * Delete directory, all the files and sub-directories from S3. Keys are deleted while they are
+     * listed, see {@link DirectoryDeletion}. When configured, the directory is only recorded as to be
+     * deleted, and deleted in the background, see {@link BackgroundPruner}.
      *
      * @param path Path to directory in S3.
      */
     void deleteDirectory(String path) throws S3Exception {
         path = sanitizedDirPath(path);
 
-        Set<String> entries = new HashSet<>();
-        if (pathExists(path)) {
-            entries.add(path);
+        metadataCache.invalidatePrefix(path);
+        String prefix = path;
+        implicitDirectories.removeIf(directory -> directory.startsWith(prefix));
+        if (pruner != null) {
+            pruner.schedule(path);
+            return;
+        }
+        try {
+            new DirectoryDeletion(s3Client, this.configuration.getBucketName(), path, MAX_KEYS_PER_BATCH_DELETE,
+                    configuration.getDeleteParallelBatches(), deleteExecutor, deleteRateLimiter, null).delete();
+        } catch (S3Exception e) {
+            throw e;
+        } catch (IOException e) {
+            throw new S3Exception(e);
         }
-
-        // Get all the files and subdirectories
-        entries.addAll(listAll(path));
-
-        deleteObjects(entries);
     }
 
     /**
@@ -226,8 +377,14 @@ class S3StorageClient {
                 .build();
 
         List<String> entries = new ArrayList<>();
+        List<S3Object> objects = new ArrayList<>();
+        List<String> subdirectories = new ArrayList<>();
         try {
             s3Client.listObjectsV2Paginator(listRequest).forEach(page -> {
+                page.contents().stream()
+                        .filter(object -> isDirectlyUnder(object.key(), prefix))
+                        .forEach(objects::add);
+                page.commonPrefixes().forEach(commonPrefix -> subdirectories.add(commonPrefix.prefix()));
 
                 // 1. Get the list of files (S3Object) at the current level.
                 List<String> files = page.contents().stream()
@@ -262,18 +419,192 @@ class S3StorageClient {
                 entries.addAll(processedEntries);
             });
 
+            // the metadata of every file listed, user metadata aside, is known now, and so is which files do not exist
+            metadataCache.putListing(prefix, objects, subdirectories);
             return entries.toArray(new String[0]);
         } catch (SdkException ase) {
             throw handleAmazonException(ase);
         }
     }
 
+    private static boolean isDirectlyUnder(String key, String prefix) {
+        return key.startsWith(prefix) && key.indexOf(S3_FILE_PATH_DELIMITER, prefix.length()) < 0 || key.equals(prefix);
+    }
+
+    /**
+     * List the directory a file is in, unless it was listed already, so the metadata of the file and
+     * of all its siblings is cached at the cost of a few listings. Readers of a backup look at its
+     * files one at a time, each costing a HEAD request otherwise.
+     */
+    private void listDirectoryOf(String key) throws S3Exception {
+        String parent = MetadataCache.parentOf(key);
+        if (!parent.isEmpty() && metadataCache.isEnabled() && !metadataCache.isListed(parent)) {
+            listDir(parent);
+        }
+    }
+
+    /**
+     * List all the files under the given path, at any depth, with their length. Directory markers
+     * are left out.
+     *
+     * @param path Path to directory in S3.
+     * @return length of every file, by S3 key.
+     */
+    Map<String, Long> listFiles(String path) throws S3Exception {
+        String prefix = sanitizedDirPath(path);
+        if (S3_FILE_PATH_DELIMITER.equals(prefix)) {
+            prefix = "";
+        }
+
+        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
+                .bucket(this.configuration.getBucketName())
+                .prefix(prefix)
+                .build();
+
+        Map<String, Long> files = new HashMap<>();
+        try {
+            s3Client.listObjectsV2Paginator(listRequest).forEach(page -> page.contents().stream()
+                    .filter(object -> !object.key().endsWith(S3_FILE_PATH_DELIMITER))
+                    .forEach(object -> files.put(object.key(), object.size())));
+            return files;
+        } catch (SdkException ase) {
+            throw handleAmazonException(ase);
+        }
+    }
+
+    /**
+     * @param path to file in S3.
+     * @return the user-defined metadata of the file.
+     */
+    Map<String, String> getUserMetadata(String path) throws S3Exception {
+        path = sanitizedFilePath(path);
+        try {
+            return getObjectMetadata(path, true).metadata();
+        } catch (SdkException ase) {
+            throw handleAmazonException(ase);
+        }
+    }
+
+    /**
+     * Copy a file within the bucket, without transferring its content. Its metadata is copied too.
+     *
+     * @param sourcePath to the file in S3.
+     * @param destPath   to the copy in S3.
+     * @param length     of the file.
+     * @param metadata   user-defined metadata of the file. Only needed for files too large to be
+     *                   copied with a single request.
+     */
+    void copyObject(String sourcePath, String destPath, long length, Map<String, String> metadata)
+            throws S3Exception {
+        metadataCache.invalidate(sanitizedFilePath(destPath));
+        if (length <= MAX_COPY_OBJECT_SIZE) {
+            try {
+                s3Client.copyObject(CopyObjectRequest.builder()
+                        .sourceBucket(this.configuration.getBucketName())
+                        .sourceKey(sanitizedFilePath(sourcePath))
+                        .destinationBucket(this.configuration.getBucketName())
+                        .destinationKey(sanitizedFilePath(destPath))
+                        .build());
+            } catch (SdkException ase) {
+                throw handleAmazonException(ase);
+            }
+        } else {
+            copyObjectInParts(sourcePath, destPath, length, S3OutputStream.MAX_PART_SIZE, metadata);
+        }
+    }
+
+    /**
+     * Copy a file within the bucket with a multipart upload, whose parts are copied from ranges of
+     * the source file.
+     */
+    @VisibleForTesting
+    void copyObjectInParts(String sourcePath, String destPath, long length, int partSize,
+                           Map<String, String> metadata) throws S3Exception {
+        String bucket = this.configuration.getBucketName();
+        String sourceKey = sanitizedFilePath(sourcePath);
+        String destKey = sanitizedFilePath(destPath);
+        metadataCache.invalidate(destKey);
+        String uploadId;
+        try {
+            uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(destKey)
+                    .metadata(metadata)
+                    .build()).uploadId();
+        } catch (SdkException ase) {
+            throw handleAmazonException(ase);
+        }
+
+        try {
+            List<CompletedPart> parts = new ArrayList<>();
+            for (long position = 0; position < length; position += partSize) {
+                long last = Math.min(length, position + partSize) - 1;
+                int partNumber = parts.size() + 1;
+                UploadPartCopyResponse response = s3Client.uploadPartCopy(UploadPartCopyRequest.builder()
+                        .sourceBucket(bucket)
+                        .sourceKey(sourceKey)
+                        .destinationBucket(bucket)
+                        .destinationKey(destKey)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .copySourceRange("bytes=" + position + "-" + last)
+                        .build());
+                parts.add(CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(response.copyPartResult().eTag())
+                        .build());
+            }
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(destKey)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build());
+        } catch (SdkException ase) {
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(destKey)
+                        .uploadId(uploadId)
+                        .build());
+            } catch (SdkException abortException) {
+                ase.addSuppressed(abortException);
+            }
+            throw handleAmazonException(ase);
+        }
+    }
+
     HeadObjectResponse getObjectMetadata(String path) throws SdkException {
+        return getObjectMetadata(path, false);
+    }
+
+    /**
+     * @param withUserMetadata whether the user metadata is needed. Then the metadata cached from a
+     *                         listing is refreshed with a HEAD request, as a listing does not have it.
+     */
+    private HeadObjectResponse getObjectMetadata(String path, boolean withUserMetadata) throws SdkException {
+        HeadObjectResponse cached = metadataCache.get(path, withUserMetadata);
+        if (cached != null) {
+            return cached;
+        }
+        if (metadataCache.isMissing(path)) {
+            throw NoSuchKeyException.builder()
+                    .message("Key is not in the listing of its directory: " + path)
+                    .statusCode(404)
+                    .awsErrorDetails(AwsErrorDetails.builder()
+                            .serviceName("S3")
+                            .errorCode("NoSuchKey")
+                            .errorMessage("Key is not in the listing of its directory")
+                            .build())
+                    .build();
+        }
         HeadObjectRequest request = HeadObjectRequest.builder()
                 .bucket(this.configuration.getBucketName())
                 .key(path)
                 .build();
-        return s3Client.headObject(request);
+        HeadObjectResponse response = s3Client.headObject(request);
+        metadataCache.put(path, response);
+        return response;
     }
 
     /**
@@ -283,6 +614,9 @@ class S3StorageClient {
      * @return true if path exists, otherwise false?
      */
     boolean pathExists(String path) throws S3Exception {
+        if (configuration.isDirectoryImplicit()) {
+            return implicitPathExists(path);
+        }
         if (isDirectory(path)) {
             return true;
         }
@@ -314,6 +648,10 @@ class S3StorageClient {
     boolean isDirectory(String path) throws S3Exception {
         String dirPath = sanitizedDirPath(path);
 
+        if (configuration.isDirectoryImplicit()) {
+            return isImplicitDirectory(dirPath);
+        }
+
         try {
             HeadObjectResponse dirResponse = getObjectMetadata(dirPath);
             String contentType = dirResponse.contentType();
@@ -335,6 +673,66 @@ class S3StorageClient {
         }
     }
 
+    /**
+     * Without directory markers, a path is a directory when it is the root, when this client created
+     * it, or when a key starts with it.
+     */
+    private boolean isImplicitDirectory(String dirPath) throws S3Exception {
+        if (dirPath.isEmpty() || S3_FILE_PATH_DELIMITER.equals(dirPath) || implicitDirectories.contains(dirPath)
+                || metadataCache.get(dirPath) != null) {
+            return true;
+        }
+        Boolean listed = metadataCache.hasKeysUnder(dirPath);
+        if (listed != null) {
+            return listed;
+        }
+        return firstKey(dirPath) != null;
+    }
+
+    /**
+     * Without directory markers, a path exists when it is a file or an implicit directory. A single
+     * listing usually tells: keys are listed in order, so the file itself comes before its siblings
+     * and the keys under it. Only when a sibling such as {@code file.txt} comes first, is the
+     * directory checked separately.
+     */
+    private boolean implicitPathExists(String path) throws S3Exception {
+        String filePath = sanitizedFilePath(path);
+        String dirPath = sanitizedDirPath(path);
+        if (filePath.isEmpty() || S3_FILE_PATH_DELIMITER.equals(filePath) || implicitDirectories.contains(dirPath)
+                || metadataCache.get(filePath) != null || metadataCache.get(dirPath) != null) {
+            return true;
+        }
+        if (metadataCache.isMissing(filePath)) {
+            return isImplicitDirectory(dirPath);
+        }
+
+        String first = firstKey(filePath);
+        if (first == null) {
+            return false;
+        }
+        if (first.equals(filePath) || first.startsWith(dirPath)) {
+            return true;
+        }
+        return firstKey(dirPath) != null;
+    }
+
+    /**
+     * @return the first key starting with {@code prefix}, or {@code null} when there is none.
+     */
+    private String firstKey(String prefix) throws S3Exception {
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(this.configuration.getBucketName())
+                .prefix(prefix)
+                .maxKeys(1)
+                .build();
+        try {
+            List<S3Object> contents = s3Client.listObjectsV2(request).contents();
+            return contents.isEmpty() ? null : contents.get(0).key();
+        } catch (SdkException ase) {
+            throw handleAmazonException(ase);
+        }
+    }
+
     /**
      * Get length of file in bytes.
      *
@@ -343,6 +741,7 @@ class S3StorageClient {
      */
     long length(String path) throws S3Exception {
         path = sanitizedFilePath(path);
+        listDirectoryOf(path);
         try {
             HeadObjectResponse objectMetaData = getObjectMetadata(path);
             String contentType = objectMetaData.contentType();
@@ -372,7 +771,71 @@ class S3StorageClient {
                             .key(path)
                     .build());
             // This InputStream instance needs to be closed by the caller
-            return requestedObject;
+            return BandwidthLimiter.getInstance().throttleDownload(requestedObject);
+        } catch (SdkException ase) {
+            throw handleAmazonException(ase);
+        }
+    }
+
+    /**
+     * Open a new {@link InputStream} to read a whole file, downloading ranges of it concurrently when
+     * configured. Otherwise, same as {@link #pullStream}. Caller needs to close the stream.
+     *
+     * @param path to file in S3.
+     * @return InputStream for file.
+     */
+    InputStream pullStreamInRanges(String path) throws S3Exception {
+        if (downloadExecutor == null) {
+            return pullStream(path);
+        }
+        return new ParallelRangeInputStream(s3Client, this.configuration.getBucketName(), sanitizedFilePath(path),
+                configuration.getDownloadRangeSize(), configuration.getDownloadParallelRanges(), downloadExecutor,
+                bufferPool);
+    }
+
+    /**
+     * @return whether files are downloaded with several ranged requests at the same time.
+     */
+    boolean isDownloadInRanges() {
+        return downloadExecutor != null;
+    }
+
+    /**
+     * Download a file into a local file, writing ranges of it concurrently at their position. Only
+     * available when {@link #isDownloadInRanges()}.
+     *
+     * @param path          to file in S3.
+     * @param channel       of the local file, open for writing.
+     * @param trailerLength number of bytes at the end of the file left out of the checksum.
+     * @param progress      told the length of every range once it is written.
+     * @return the length of the file, and its checksum.
+     */
+    ParallelRangeDownload.Result downloadInRanges(String path, FileChannel channel, int trailerLength,
+                                                  LongConsumer progress) throws IOException {
+        return new ParallelRangeDownload(s3Client, this.configuration.getBucketName(), sanitizedFilePath(path),
+                configuration.getDownloadRangeSize(), downloadExecutor, bufferPool)
+                .download(channel, trailerLength, progress);
+    }
+
+    /**
+     * Open a file for random access. Only the length and version of the file are requested here, its
+     * content is read block by block when needed.
+     *
+     * @param path to file in S3.
+     * @return reader of the current version of the file.
+     */
+    S3BlockReader openBlockReader(String path) throws S3Exception {
+        path = sanitizedFilePath(path);
+        listDirectoryOf(path);
+        try {
+            HeadObjectResponse objectMetaData = getObjectMetadata(path);
+            String contentType = objectMetaData.contentType();
+            if (!StringUtils.isEmpty(contentType) && contentType.equalsIgnoreCase(S3_DIR_CONTENT_TYPE)) {
+                throw new S3Exception("Path is Directory");
+            }
+            return new S3BlockReader(s3Client, this.configuration.getBucketName(), path, objectMetaData.eTag(),
+                    objectMetaData.contentLength(), configuration.getReadBlockSize(), blockCache,
+                    configuration.getReadAheadBlocks(), readAheadExecutor);
         } catch (SdkException ase) {
             throw handleAmazonException(ase);
         }
@@ -384,24 +847,100 @@ class S3StorageClient {
      * @param path to file in S3.
      * @return OutputStream for file.
      */
-    OutputStream pushStream(String path) throws S3Exception {
+    S3OutputStream pushStream(String path) throws S3Exception {
+        return pushStream(path, -1);
+    }
+
+    /**
+     * Open a new {@link OutputStream} to file for write. Caller needs to close the stream.
+     *
+     * @param path   to file in S3.
+     * @param length number of bytes that will be written, or -1 if unknown. Used to size the parts
+     *               of the upload.
+     * @return OutputStream for file.
+     */
+    S3OutputStream pushStream(String path, long length) throws S3Exception {
         path = sanitizedFilePath(path);
 
         if (!parentDirectoryExist(path)) {
             throw new S3Exception("Parent directory doesn't exist of path: " + path);
         }
 
+        // the metadata of an earlier version is no longer valid
+        metadataCache.invalidate(path);
         try {
-            return new S3OutputStream(s3Client, path, this.configuration);
+            return new S3OutputStream(s3Client, path, this.configuration, length, uploadExecutor, uploadBufferBudget,
+                    bufferPool);
         } catch (SdkException ase) {
             throw handleAmazonException(ase);
         }
     }
 
+    /**
+     * Count the next requests of this client into {@code session}, see {@link RequestAccounting}.
+     */
+    void setTransferSession(TransferSession session) {
+        requestAccounting.setSession(session);
+    }
+
+    RequestAccounting getRequestAccounting() {
+        return requestAccounting;
+    }
+
+    /**
+     * @return the background pruner, or null when directories are deleted right away.
+     */
+    BackgroundPruner getPruner() {
+        return pruner;
+    }
+
+    S3BackupRepositoryConfig getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return the buffers shared by the uploads and copies of this client.
+     */
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the blocks cached for the files read with random access.
+     */
+    BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * @return the metadata cached for the keys known to exist.
+     */
+    MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
     /**
      * Override {@link Closeable} since we throw no exception.
      */
     void close() {
+        if (pruner != null) {
+            pruner.close();
+        }
+        if (uploadExecutor != null) {
+            ExecutorUtil.shutdownAndAwaitTermination(uploadExecutor);
+        }
+        if (downloadExecutor != null) {
+            ExecutorUtil.shutdownAndAwaitTermination(downloadExecutor);
+        }
+        if (readAheadExecutor != null) {
+            ExecutorUtil.shutdownAndAwaitTermination(readAheadExecutor);
+        }
+        if (deleteExecutor != null) {
+            ExecutorUtil.shutdownAndAwaitTermination(deleteExecutor);
+        }
+        bufferPool.logStatistics();
+        blockCache.logStatistics();
+        metadataCache.logStatistics();
         s3Client.close();
     }
 
@@ -409,6 +948,7 @@ class S3StorageClient {
      * Any file path that specifies a non-existent file will not be treated as an error.
      */
     private Collection<String> deleteObjects(Collection<String> paths) throws S3Exception {
+        paths.forEach(metadataCache::invalidate);
         try {
             /*
              * Per the S3 docs:
@@ -488,36 +1028,14 @@ class S3StorageClient {
                 .build();
     }
 
-    private List<String> listAll(String path) throws S3Exception {
-        String prefix = sanitizedDirPath(path);
-
-        ListObjectsV2Request listRequest = ListObjectsV2Request.builder()
-                .bucket(this.configuration.getBucketName())
-                .prefix(prefix)
-                .build();
-
-        List<String> entries = new ArrayList<>();
-        try {
-                s3Client.listObjectsV2Paginator(listRequest).forEach(page -> {
-                    List<String> files = page.contents().stream()
-                            .map(S3Object::key)
-                            .filter(s -> s.startsWith(prefix))
-                            .collect(Collectors.toList());
-
-                    entries.addAll(files);
-                });
-            return entries;
-        } catch (SdkException ase) {
-            throw handleAmazonException(ase);
-        }
-    }
-
     private boolean parentDirectoryExist(String path) throws S3Exception {
         // Get the last non-slash character of the string, to find the parent directory
         String parentDirectory = getParentDirectory(path);
 
-        // If we have no specific parent directory, we consider parent is root (and always exists)
-        if (parentDirectory.isEmpty() || parentDirectory.equals(S3_FILE_PATH_DELIMITER)) {
+        // If we have no specific parent directory, we consider parent is root (and always exists).
+        // Implicit directories need not exist before a file is written in them.
+        if (parentDirectory.isEmpty() || parentDirectory.equals(S3_FILE_PATH_DELIMITER)
+                || configuration.isDirectoryImplicit()) {
             return true;
         }
 
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Time spent in each stage of copying files, to tell whether a backup or a restore waits on the
+ * disk, on the CPU or on S3. Kept for a single file, and added up for a {@link TransferSession}.
+ *
+ * <p>The breakdown is a share of the time of all stages, not of the elapsed time: files copied at
+ * the same time each add their own.
+ */
+class StageProfile {
+
+    enum Stage {
+        // Reading the local index. Lucene computes the checksum of an IndexInput while reading it.
+        DISK_READ("disk read"),
+        // Writing the restored index, checksum included
+        DISK_WRITE("disk write"),
+        CHECKSUM("checksum"),
+        // Handing bytes over to the upload, and waiting for its parts to complete
+        UPLOAD_WAIT("upload wait"),
+        // Waiting for the bytes of a download, or for all ranges of a file
+        DOWNLOAD_WAIT("download wait"),
+        // Directories, listings and metadata of keys
+        METADATA("metadata"),
+        // Unchanged files copied within S3
+        COPY("copy within S3");
+
+        private final String description;
+
+        Stage(String description) {
+            this.description = description;
+        }
+    }
+
+    private final LongAdder[] nanos = new LongAdder[Stage.values().length];
+
+    StageProfile() {
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Add the time since {@code startNanos}, as returned by {@link System#nanoTime()}.
+     *
+     * @return the current time, to start the next stage from.
+     */
+    long addSince(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        nanos[stage.ordinal()].add(now - startNanos);
+        return now;
+    }
+
+    void add(StageProfile other) {
+        for (Stage stage : Stage.values()) {
+            nanos[stage.ordinal()].add(other.getNanos(stage));
+        }
+    }
+
+    long getNanos(Stage stage) {
+        return nanos[stage.ordinal()].sum();
+    }
+
+    long getTotalNanos() {
+        return Arrays.stream(nanos).mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * @return the share of each stage, largest first, e.g. {@code 62% upload wait, 30% disk read,
+     *     8% metadata}, or {@code none} when nothing was timed.
+     */
+    String breakdown() {
+        long total = getTotalNanos();
+        if (total == 0) {
+            return "none";
+        }
+        return Arrays.stream(Stage.values())
+                .filter(stage -> getNanos(stage) > 0)
+                .sorted(Comparator.comparingLong(this::getNanos).reversed())
+                .map(stage -> String.format(Locale.ROOT, "%d%% %s",
+                        Math.round(100.0 * getNanos(stage) / total), stage.description))
+                .collect(Collectors.joining(", "));
+    }
+
+    @Override
+    public String toString() {
+        return breakdown() + " of " + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + "ms";
+    }
+}
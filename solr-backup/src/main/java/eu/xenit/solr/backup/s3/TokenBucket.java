@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter handing out permits, e.g. keys to delete, at a steady rate, with bursts of up to
+ * one second worth of permits.
+ *
+ * <p>Permits are reserved as soon as they are asked for, and the caller then waits until the rate
+ * allows them. So concurrent callers are served in turn, and a request for more permits than a
+ * burst still goes through, the next callers waiting for it to be paid back.
+ *
+ * <p>The rate can be changed at any time, e.g. through JMX, and applies to the next permits.
+ */
+class TokenBucket {
+
+    /**
+     * Bucket that never makes anyone wait.
+     */
+    static final TokenBucket UNLIMITED = new TokenBucket(0);
+
+    // Written under this lock, read without it to skip the lock when there is no limit
+    private volatile long permitsPerSecond;
+
+    // Guarded by this. Negative while callers are waiting for their permits.
+    private double permits;
+    private long refilledAt = System.nanoTime();
+    private long waits;
+    private long waitedNanos;
+
+    /**
+     * @param permitsPerSecond rate at which permits are handed out. With 0, there is no limit.
+     */
+    TokenBucket(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.permits = permitsPerSecond;
+    }
+
+    /**
+     * Take {@code count} permits, waiting until the rate allows it.
+     */
+    void acquire(long count) throws InterruptedIOException {
+        if (permitsPerSecond <= 0 || count <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            // the rate may have been removed since it was read above
+            long rate = permitsPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            permits = Math.min(rate, permits + (now - refilledAt) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+            double missing = count - permits;
+            permits -= count;
+            if (missing <= 0) {
+                return;
+            }
+            waitNanos = (long) Math.ceil(missing * TimeUnit.SECONDS.toNanos(1) / rate);
+            waits++;
+            waitedNanos += waitNanos;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + count + " permits");
+        }
+    }
+
+    long getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Change the rate. Callers already waiting keep waiting for the time they were told.
+     *
+     * @param permitsPerSecond the new rate. With 0, there is no limit.
+     */
+    synchronized void setPermitsPerSecond(long permitsPerSecond) {
+        if (this == UNLIMITED) {
+            throw new UnsupportedOperationException("The rate of the unlimited bucket cannot be changed");
+        }
+        long now = System.nanoTime();
+        if (this.permitsPerSecond > 0) {
+            // settle the permits earned at the old rate
+            permits = Math.min(this.permitsPerSecond,
+                    permits + (now - refilledAt) * (double) this.permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        } else {
+            permits = permitsPerSecond;
+        }
+        // the debt of waiting callers is kept, and a burst is at most one second at the new rate
+        permits = Math.min(permits, permitsPerSecond);
+        refilledAt = now;
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    synchronized long getWaits() {
+        return waits;
+    }
+
+    synchronized long getWaitedNanos() {
+        return waitedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ROOT, "permitsPerSecond=%d waits=%d waitedMillis=%d",
+                permitsPerSecond, waits, TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import com.codahale.metrics.Meter;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Progress of a backup or a restore: bytes transferred out of the bytes expected, over all files and
+ * all their parts or ranges, with the current throughput and the time left.
+ *
+ * <p>The expected bytes are the larger of an estimate made when the session starts, e.g. the files
+ * of the latest commit, and the lengths of the files handed over so far. Bytes are counted when a
+ * part is uploaded, a range is downloaded, or a file is copied within S3.
+ *
+ * <p>The requests sent to S3 during the session are counted by operation, see {@link
+ * RequestAccounting}, and summed up by the price class S3 bills them in.
+ *
+ * <p>The time spent in each stage of copying its files is added up as well, see {@link
+ * StageProfile}.
+ *
+ * <p>Sessions are published as JMX MBeans named {@code
+ * eu.xenit.solr.backup.s3:type=TransferSession,name=<kind>-<number>}. Solr does not always close its
+ * repositories, so only the {@value #MAX_RECENT} most recent sessions are kept.
+ *
+ * <p>Solr does not tell either when a backup or restore is over. A session finishes once the files
+ * of its estimate are all completed, or once it made no progress for its idle timeout, e.g. when a
+ * file failed or was not copied through the repository.
+ */
+class TransferSession implements TransferSessionMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferSession.class);
+
+    static final int MAX_RECENT = 10;
+
+    // Throughput is taken over the whole session until it is that old
+    private static final Duration RATE_WINDOW = Duration.ofMinutes(1);
+
+    enum Kind {
+        BACKUP, RESTORE
+    }
+
+    // Billed as PUT, COPY, POST or LIST requests by S3, the most expensive ones
+    private static final Set<String> WRITE_OPERATIONS = new HashSet<>(Arrays.asList("PutObject", "CopyObject",
+            "CreateMultipartUpload", "UploadPart", "UploadPartCopy", "CompleteMultipartUpload", "ListObjects",
+            "ListObjectsV2", "ListMultipartUploads", "ListParts"));
+    // Not billed
+    private static final Set<String> FREE_OPERATIONS = new HashSet<>(Arrays.asList("DeleteObject", "DeleteObjects",
+            "AbortMultipartUpload"));
+
+    // Finishes the sessions left idle
+    private static final ScheduledExecutorService idleChecker = newIdleChecker();
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+    // Guarded by itself, oldest first
+    private static final Deque<TransferSession> recent = new ArrayDeque<>();
+
+    private final Kind kind;
+    private final String name;
+    private final Instant startTime = Instant.now();
+    private final Meter throughput = new Meter();
+    private final AtomicInteger estimatedFiles = new AtomicInteger();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    private final AtomicInteger submittedFiles = new AtomicInteger();
+    private final AtomicLong submittedBytes = new AtomicLong();
+    private final AtomicInteger completedFiles = new AtomicInteger();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final StageProfile stages = new StageProfile();
+    private volatile long lastProgressNanos = System.nanoTime();
+    private volatile Instant endTime;
+    // Set once published through JMX
+    private ObjectName objectName;
+
+    TransferSession(Kind kind) {
+        this.kind = kind;
+        this.name = kind.name().toLowerCase(Locale.ROOT) + "-" + sequence.incrementAndGet();
+    }
+
+    private static ScheduledExecutorService newIdleChecker() {
+        ThreadFactory threadFactory = new DefaultSolrThreadFactory("s3-session-idle");
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = threadFactory.newThread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Start a session, and keep it with the recent ones.
+     *
+     * @param publish whether to publish it through JMX.
+     * @param idleTimeoutMillis how long the session may make no progress before it is finished. With
+     *                          0, it only finishes once its estimate is completed, or by {@link #finish}.
+     */
+    static TransferSession start(Kind kind, boolean publish, long idleTimeoutMillis) {
+        TransferSession session = new TransferSession(kind);
+        if (publish) {
+            session.register();
+        }
+        if (idleTimeoutMillis > 0) {
+            session.finishWhenIdle(idleTimeoutMillis, idleTimeoutMillis);
+        }
+        synchronized (recent) {
+            recent.addLast(session);
+            while (recent.size() > MAX_RECENT) {
+                recent.removeFirst().unregister();
+            }
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Transfer session {} started", session.name);
+        }
+        return session;
+    }
+
+    /**
+     * @return the recent sessions, oldest first.
+     */
+    static List<TransferSession> recent() {
+        synchronized (recent) {
+            return new ArrayList<>(recent);
+        }
+    }
+
+    private void register() {
+        try {
+            ObjectName objectName = new ObjectName(S3Metrics.JMX_DOMAIN + ":type=TransferSession,name=" + name);
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new StandardMBean(this, TransferSessionMBean.class), objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            log.warn("Could not publish transfer session {} through JMX", name, e);
+        }
+    }
+
+    private void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn("Could not remove transfer session {} from JMX", name, e);
+        }
+    }
+
+    private void finishWhenIdle(long idleTimeoutMillis, long delayMillis) {
+        idleChecker.schedule(() -> {
+            if (isFinished()) {
+                return;
+            }
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastProgressNanos);
+            if (idleMillis < idleTimeoutMillis) {
+                finishWhenIdle(idleTimeoutMillis, idleTimeoutMillis - idleMillis);
+                return;
+            }
+            if (log.isInfoEnabled()) {
+                log.info("Transfer session {} made no progress for {}ms", name, idleMillis);
+            }
+            finish();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Estimate the total size of the session before its files are handed over.
+     */
+    void estimate(int files, long bytes) {
+        estimatedFiles.set(files);
+        estimatedBytes.set(bytes);
+    }
+
+    /**
+     * A file of {@code length} bytes is about to be copied.
+     */
+    void expectFile(long length) {
+        lastProgressNanos = System.nanoTime();
+        submittedFiles.incrementAndGet();
+        submittedBytes.addAndGet(length);
+    }
+
+    void transferred(long bytes) {
+        if (bytes > 0) {
+            lastProgressNanos = System.nanoTime();
+            transferredBytes.addAndGet(bytes);
+            throughput.mark(bytes);
+        }
+    }
+
+    void countRequests(String operation, long count) {
+        requests.computeIfAbsent(operation, key -> new LongAdder()).add(count);
+    }
+
+    /**
+     * @return the number of requests sent for each operation, e.g. {@code UploadPart}.
+     */
+    Map<String, Long> getRequests() {
+        return requests.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum(), Long::sum, TreeMap::new));
+    }
+
+    /**
+     * @return the time spent in each stage, to add the profile of every file to.
+     */
+    StageProfile getStages() {
+        return stages;
+    }
+
+    /**
+     * A file is copied. Finishes the session when that was the last one of its estimate, and no
+     * other file is being copied.
+     */
+    void fileCompleted() {
+        lastProgressNanos = System.nanoTime();
+        int completed = completedFiles.incrementAndGet();
+        int estimated = estimatedFiles.get();
+        if (estimated > 0 && completed >= estimated && completed >= submittedFiles.get()) {
+            finish();
+        }
+    }
+
+    /**
+     * Mark the session finished, and log a summary of it. Does nothing when it already is.
+     */
+    synchronized void finish() {
+        if (endTime != null) {
+            return;
+        }
+        endTime = Instant.now();
+        if (log.isInfoEnabled()) {
+            log.info("Transfer session {} finished: {}; requests: {}; stages: {}", name, getStatus(),
+                    getRequestSummary(), getStageBreakdown());
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public String getKind() {
+        return kind.name();
+    }
+
+    @Override
+    public String getStartTime() {
+        return startTime.toString();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return endTime != null;
+    }
+
+    @Override
+    public int getExpectedFiles() {
+        return Math.max(estimatedFiles.get(), submittedFiles.get());
+    }
+
+    @Override
+    public int getCompletedFiles() {
+        return completedFiles.get();
+    }
+
+    @Override
+    public long getExpectedBytes() {
+        return Math.max(estimatedBytes.get(), submittedBytes.get());
+    }
+
+    @Override
+    public long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    @Override
+    public double getPercentComplete() {
+        long expected = getExpectedBytes();
+        if (expected == 0) {
+            return isFinished() ? 100 : 0;
+        }
+        // retried parts and ranges are counted again
+        return Math.min(100, 100.0 * getTransferredBytes() / expected);
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        Instant end = endTime;
+        Duration elapsed = Duration.between(startTime, end == null ? Instant.now() : end);
+        if (end != null || elapsed.compareTo(RATE_WINDOW) < 0) {
+            return elapsed.isZero() ? 0 : getTransferredBytes() * 1e9 / elapsed.toNanos();
+        }
+        return throughput.getOneMinuteRate();
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        if (isFinished()) {
+            return 0;
+        }
+        double rate = getBytesPerSecond();
+        long remaining = getExpectedBytes() - getTransferredBytes();
+        if (rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, remaining) / rate);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public long getWriteRequests() {
+        return countOf(WRITE_OPERATIONS);
+    }
+
+    @Override
+    public long getReadRequests() {
+        return getRequestCount() - countOf(WRITE_OPERATIONS) - countOf(FREE_OPERATIONS);
+    }
+
+    private long countOf(Set<String> operations) {
+        return requests.entrySet().stream()
+                .filter(e -> operations.contains(e.getKey()))
+                .mapToLong(e -> e.getValue().sum())
+                .sum();
+    }
+
+    @Override
+    public String getRequestSummary() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.ROOT, "%d requests (%d write, %d read)",
+                getRequestCount(), getWriteRequests(), getReadRequests()));
+        getRequests().forEach((operation, count) -> summary.append(' ').append(operation).append('=').append(count));
+        return summary.toString();
+    }
+
+    @Override
+    public String getStageBreakdown() {
+        return stages.toString();
+    }
+
+    @Override
+    public String getStatus() {
+        return String.format(Locale.ROOT,
+                "%s %s: %d/%d files, %d/%d bytes (%.1f%%), %.0f bytes/s, eta %ds, started %s",
+                name, isFinished() ? "finished" : "running", getCompletedFiles(), getExpectedFiles(),
+                getTransferredBytes(), getExpectedBytes(), getPercentComplete(), getBytesPerSecond(),
+                getEtaSeconds(), startTime);
+    }
+
+    @Override
+    public String toString() {
+        return getStatus();
+    }
+}
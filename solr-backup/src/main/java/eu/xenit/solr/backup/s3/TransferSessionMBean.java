@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+/**
+ * Progress of a backup or a restore, as published through JMX. See {@link TransferSession}.
+ */
+public interface TransferSessionMBean {
+
+    /**
+     * @return {@code BACKUP} or {@code RESTORE}.
+     */
+    String getKind();
+
+    /**
+     * @return when the first file was copied, in ISO-8601.
+     */
+    String getStartTime();
+
+    /**
+     * @return whether the repository is done with the session.
+     */
+    boolean isFinished();
+
+    int getExpectedFiles();
+
+    int getCompletedFiles();
+
+    long getExpectedBytes();
+
+    long getTransferredBytes();
+
+    /**
+     * @return the transferred bytes as a percentage of the expected ones, from 0 to 100.
+     */
+    double getPercentComplete();
+
+    /**
+     * @return current throughput, over the last minute once the session is that old.
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return seconds left at the current throughput, or -1 when unknown.
+     */
+    long getEtaSeconds();
+
+    /**
+     * @return the requests sent to S3 during the session, retries included.
+     */
+    long getRequestCount();
+
+    /**
+     * @return the PUT, COPY, POST and LIST requests, the most expensive class of requests of S3.
+     */
+    long getWriteRequests();
+
+    /**
+     * @return the GET, HEAD and other requests billed as reads. DELETE requests are free.
+     */
+    long getReadRequests();
+
+    /**
+     * @return the request counts on a single line, with the count of each operation.
+     */
+    String getRequestSummary();
+
+    /**
+     * @return the share of each stage of copying the files, e.g. {@code 62% upload wait, 30% disk
+     *     read, 8% metadata}.
+     */
+    String getStageBreakdown();
+
+    /**
+     * @return the progress on a single line, as logged.
+     */
+    String getStatus();
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.xenit.solr.backup.s3;
+
+import org.apache.solr.common.util.ExecutorUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the file uploads of a backup on a bounded pool of workers, so the caller can hand over the
+ * next file while earlier ones are still being uploaded.
+ *
+ * <p>Pending uploads are started largest first, so a big file does not end up alone at the end of
+ * the backup. The number of files waiting or being uploaded is bounded: when the limit is reached,
+ * {@link #schedule} blocks.
+ *
+ * <p>Failures are kept until the next call of {@link #schedule} or {@link #awaitCompletion}, which
+ * rethrows the first one.
+ */
+class UploadScheduler implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadScheduler.class);
+
+    /**
+     * Upload of a single file. Any resource it uses has been opened before it is scheduled.
+     */
+    interface Upload {
+        void run() throws IOException;
+    }
+
+    private static final class PendingUpload {
+        private final String name;
+        private final long length;
+        private final long sequence;
+        private final Upload upload;
+
+        PendingUpload(String name, long length, long sequence, Upload upload) {
+            this.name = name;
+            this.length = length;
+            this.sequence = sequence;
+            this.upload = upload;
+        }
+    }
+
+    // Largest first, in order of scheduling for files of the same length
+    private static final Comparator<PendingUpload> LARGEST_FIRST =
+            Comparator.<PendingUpload>comparingLong(upload -> upload.length).reversed()
+                    .thenComparingLong(upload -> upload.sequence);
+
+    private final ExecutorService executor;
+    private final Semaphore pendingFiles;
+    private final PriorityQueue<PendingUpload> queue = new PriorityQueue<>(LARGEST_FIRST);
+
+    // Guarded by this
+    private long scheduled;
+    private int unfinished;
+    private IOException failure;
+
+    /**
+     * @param parallelFiles   number of files uploaded concurrently.
+     * @param maxPendingFiles number of files that may be waiting for, or busy with, an upload.
+     */
+    UploadScheduler(int parallelFiles, int maxPendingFiles) {
+        this.executor = S3StorageClient.newWorkerPool("s3-file-upload", parallelFiles);
+        this.pendingFiles = new Semaphore(Math.max(parallelFiles, maxPendingFiles));
+    }
+
+    /**
+     * Schedule the upload of a file of {@code length} bytes. If an earlier upload failed, its failure
+     * is thrown instead, and {@code resource} is closed.
+     *
+     * @param resource closed when the upload can not be scheduled. Closing it once the upload is done
+     *                 is up to {@code upload} itself.
+     */
+    void schedule(String name, long length, Closeable resource, Upload upload) throws IOException {
+        try {
+            throwIfFailed();
+            try {
+                pendingFiles.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to schedule upload of " + name);
+            }
+            synchronized (this) {
+                queue.add(new PendingUpload(name, length, scheduled++, upload));
+                unfinished++;
+            }
+            try {
+                executor.execute(this::runLargest);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    queue.removeIf(pending -> pending.upload == upload);
+                    finished();
+                }
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            resource.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Every scheduled upload runs one task, which picks the largest upload pending at that time.
+     */
+    private void runLargest() {
+        PendingUpload pending;
+        synchronized (this) {
+            pending = queue.poll();
+        }
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.upload.run();
+        } catch (IOException | RuntimeException e) {
+            log.error("Upload of '{}' failed", pending.name, e);
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e instanceof IOException
+                            ? (IOException) e
+                            : new S3Exception("Upload of '" + pending.name + "' failed: ", e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                finished();
+            }
+        }
+    }
+
+    private void finished() {
+        pendingFiles.release();
+        if (--unfinished == 0) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void throwIfFailed() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until every scheduled upload is done.
+     *
+     * @param rethrowFailure whether to rethrow the first failure. When not, it is kept for the next
+     *                       call.
+     */
+    void awaitCompletion(boolean rethrowFailure) throws IOException {
+        synchronized (this) {
+            while (unfinished > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for pending uploads");
+                }
+            }
+        }
+        if (rethrowFailure) {
+            throwIfFailed();
+        }
+    }
+
+    /**
+     * Wait for the pending uploads, and stop the workers. Throws the failure of an upload, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitCompletion(true);
+        } finally {
+            ExecutorUtil.shutdownAndAwaitTermination(executor);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackgroundPrunerTest {
+    static final String OLD_BACKUP = "backups/snapshot.1/";
+    static final String RECORD = BackgroundPruner.PENDING_DELETES_PREFIX + "backups/snapshot.1";
+
+    InMemoryS3Client s3Client;
+
+    @BeforeEach
+    void setup() {
+        BackgroundPruner.forgetResumedBuckets();
+        s3Client = new InMemoryS3Client();
+        // written well before their deletion is recorded
+        s3Client.setClock(Clock.offset(Clock.systemUTC(), Duration.ofMinutes(-1)));
+        put(OLD_BACKUP);
+        for (int i = 0; i < 5; i++) {
+            put(OLD_BACKUP + "_" + i + ".si");
+        }
+        put("backups/snapshot.2/_0.si");
+        s3Client.setClock(Clock.systemUTC());
+    }
+
+    private void put(String key) {
+        s3Client.putObject(PutObjectRequest.builder().bucket(S3Fixtures.BUCKET).key(key).build(),
+                RequestBody.fromBytes(new byte[key.endsWith("/") ? 0 : 100]));
+    }
+
+    private static S3StorageClient asyncPruningClient(InMemoryS3Client s3Client) {
+        return new S3StorageClient(s3Client, S3Fixtures.config(S3BackupRepositoryConfig.S3_PRUNE_ASYNC, true));
+    }
+
+    @Test
+    void testDirectoryIsDeletedInTheBackground() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        s3Client.onDeleteObjects(keys -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        S3StorageClient client = asyncPruningClient(s3Client);
+
+        // returns while the deletion is blocked, once it is recorded
+        client.deleteDirectory(OLD_BACKUP);
+        assertTrue(s3Client.objects().containsKey(RECORD));
+        assertEquals(1, client.getPruner().getPendingCount());
+
+        release.countDown();
+        client.close();
+
+        assertFalse(s3Client.objects().containsKey(RECORD));
+        assertFalse(s3Client.objects().containsKey(OLD_BACKUP + "_0.si"));
+        assertFalse(s3Client.objects().containsKey(OLD_BACKUP));
+        assertTrue(s3Client.objects().containsKey("backups/snapshot.2/_0.si"));
+        assertEquals(0, client.getPruner().getPendingCount());
+    }
+
+    @Test
+    void testRecordedDeletionIsResumed() {
+        // left by a node that stopped before the deletion was done
+        put(RECORD);
+
+        S3StorageClient client = asyncPruningClient(s3Client);
+        client.close();
+
+        assertFalse(s3Client.objects().containsKey(RECORD));
+        assertFalse(s3Client.objects().containsKey(OLD_BACKUP + "_0.si"));
+        assertTrue(s3Client.objects().containsKey("backups/snapshot.2/_0.si"));
+    }
+
+    @Test
+    void testDirectoryCreatedAgainAfterRecordIsKept() throws Exception {
+        put(RECORD);
+        // a new backup with the same name, within the same second
+        put(OLD_BACKUP);
+        put(OLD_BACKUP + "_0.si");
+
+        S3StorageClient client = asyncPruningClient(s3Client);
+        client.close();
+
+        assertFalse(s3Client.objects().containsKey(RECORD));
+        assertFalse(s3Client.objects().containsKey(OLD_BACKUP + "_1.si"));
+        assertTrue(s3Client.objects().containsKey(OLD_BACKUP + "_0.si"));
+        assertTrue(s3Client.objects().containsKey(OLD_BACKUP));
+    }
+
+    @Test
+    void testRecordsAreListedOncePerBucket() {
+        asyncPruningClient(s3Client).close();
+        s3Client.resetRequestCounts();
+
+        // as Solr does for every request
+        asyncPruningClient(s3Client).close();
+
+        assertEquals(0, s3Client.requestCount("ListObjectsV2"));
+    }
+}
@@ -0,0 +1,99 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BandwidthLimiterTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private final BandwidthLimiter limiter = BandwidthLimiter.getInstance();
+
+    @AfterEach
+    void removeLimits() {
+        limiter.configure(0, 0);
+        limiter.setUploadBytesPerSecond(0);
+        limiter.setDownloadBytesPerSecond(0);
+    }
+
+    @Test
+    void testThrottledStreamIsReadAtTheRate() throws IOException {
+        TokenBucket bucket = new TokenBucket(MB);
+        byte[] data = S3Fixtures.randomBytes(MB + MB / 2);
+
+        try (InputStream in = new ThrottledInputStream(new ByteArrayInputStream(data), bucket)) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+
+        // the first second is a burst, the rest has to wait
+        assertTrue(bucket.getWaits() > 0);
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(bucket.getWaitedNanos());
+        assertTrue(waitedMillis >= 400 && waitedMillis <= 600, bucket.toString());
+    }
+
+    @Test
+    void testUploadsAndDownloadsOfAllClientsAreLimited() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepositoryConfig config = S3Fixtures.config(
+                S3BackupRepositoryConfig.S3_UPLOAD_MAX_BYTES_PER_SECOND, MB,
+                S3BackupRepositoryConfig.S3_DOWNLOAD_MAX_BYTES_PER_SECOND, 2 * MB);
+        S3StorageClient client = new S3StorageClient(s3Client, config);
+        // another client with the same configuration shares the limits
+        S3StorageClient otherClient = new S3StorageClient(s3Client, config);
+        long uploadWaits = limiter.getUploadWaits();
+        long downloadWaits = limiter.getDownloadWaits();
+        byte[] data = S3Fixtures.randomBytes(3 * MB / 2);
+
+        try (S3OutputStream out = new S3OutputStream(s3Client, "file", config)) {
+            out.write(data);
+        }
+        try (InputStream in = client.pullStream("file")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (InputStream in = otherClient.pullStream("file")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+
+        assertEquals(MB, limiter.getUploadBytesPerSecond());
+        assertEquals(2 * MB, limiter.getDownloadBytesPerSecond());
+        assertTrue(limiter.getUploadWaits() > uploadWaits);
+        assertTrue(limiter.getDownloadWaits() > downloadWaits);
+    }
+
+    @Test
+    void testLimitsCanBeChangedThroughJmx() throws JMException {
+        limiter.configure(MB, 0);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(BandwidthLimiter.OBJECT_NAME);
+
+        server.setAttribute(objectName, new Attribute("UploadBytesPerSecond", 10L * MB));
+        server.setAttribute(objectName, new Attribute("DownloadBytesPerSecond", 5L * MB));
+
+        assertEquals(10L * MB, server.getAttribute(objectName, "UploadBytesPerSecond"));
+        assertEquals(5L * MB, limiter.getDownloadBytesPerSecond());
+
+        // a new repository with the same configuration keeps the rates set at runtime
+        limiter.configure(MB, 0);
+        assertEquals(10L * MB, limiter.getUploadBytesPerSecond());
+        assertEquals(5L * MB, limiter.getDownloadBytesPerSecond());
+
+        // a new configuration applies
+        limiter.configure(2 * MB, 0);
+        assertEquals(2L * MB, limiter.getUploadBytesPerSecond());
+        assertEquals(5L * MB, limiter.getDownloadBytesPerSecond());
+    }
+}
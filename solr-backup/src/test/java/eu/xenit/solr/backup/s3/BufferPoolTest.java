@@ -0,0 +1,81 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTest {
+
+    @Test
+    void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool(1024 * 1024, 0);
+
+        ByteBuffer first = pool.acquire(100_000, false);
+        assertEquals(128 * 1024, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(128 * 1024, false);
+
+        assertSame(first, second);
+        assertEquals(0, second.position(), "a reused buffer is cleared");
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    void testHeapAndDirectBuffersAreKeptApart() {
+        BufferPool pool = new BufferPool(1024 * 1024, 0);
+
+        pool.release(pool.acquire(BufferPool.MIN_BUFFER_SIZE, false));
+        ByteBuffer direct = pool.acquire(BufferPool.MIN_BUFFER_SIZE, true);
+
+        assertTrue(direct.isDirect());
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    void testPoolWithoutSizeDoesNotKeepBuffers() {
+        ByteBuffer buffer = BufferPool.UNPOOLED.acquire(10, false);
+        BufferPool.UNPOOLED.release(buffer);
+
+        assertNotSame(buffer, BufferPool.UNPOOLED.acquire(10, false));
+        assertEquals(0, BufferPool.UNPOOLED.getIdleBytes());
+    }
+
+    @Test
+    void testExhaustedPoolWaitsForRelease() throws InterruptedException {
+        BufferPool pool = new BufferPool(BufferPool.MIN_BUFFER_SIZE, 10_000);
+        ByteBuffer lent = pool.acquire(BufferPool.MIN_BUFFER_SIZE, false);
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pool.release(lent);
+        });
+        releaser.start();
+        ByteBuffer acquired = pool.acquire(BufferPool.MIN_BUFFER_SIZE, false);
+        releaser.join();
+
+        assertSame(lent, acquired);
+        assertEquals(1, pool.getWaits());
+    }
+
+    @Test
+    void testIdleBuffersAreEvictedToMakeRoom() {
+        BufferPool pool = new BufferPool(2 * BufferPool.MIN_BUFFER_SIZE, 0);
+        pool.release(pool.acquire(BufferPool.MIN_BUFFER_SIZE, false));
+
+        ByteBuffer large = pool.acquire(2 * BufferPool.MIN_BUFFER_SIZE, false);
+
+        assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, large.capacity());
+        assertEquals(0, pool.getIdleBytes());
+    }
+}
@@ -0,0 +1,40 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Crc32Test {
+
+    private static long crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    @Test
+    void testCombinedChecksumIsChecksumOfConcatenation() {
+        byte[] data = S3Fixtures.randomBytes(100_000);
+
+        for (int split : new int[]{0, 1, 8, 4096, 65_536, 99_999, 100_000}) {
+            long combined = Crc32.combine(crc(data, 0, split), crc(data, split, data.length - split),
+                    data.length - split);
+            assertEquals(crc(data, 0, data.length), combined, "split at " + split);
+        }
+    }
+
+    @Test
+    void testCombineManyParts() {
+        byte[] data = S3Fixtures.randomBytes(10_000);
+
+        long combined = 0;
+        for (int offset = 0; offset < data.length; offset += 777) {
+            int length = Math.min(777, data.length - offset);
+            combined = Crc32.combine(combined, crc(data, offset, length), length);
+        }
+
+        assertEquals(crc(data, 0, data.length), combined);
+    }
+}
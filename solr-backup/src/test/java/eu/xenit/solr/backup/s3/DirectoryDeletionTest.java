@@ -0,0 +1,168 @@
+package eu.xenit.solr.backup.s3;
+
+import org.apache.solr.common.util.ExecutorUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectoryDeletionTest {
+    static final String PREFIX = "backups/snapshot.1/";
+    static final int BATCH_SIZE = 10;
+
+    InMemoryS3Client s3Client;
+    ExecutorService executor;
+
+    @BeforeEach
+    void setup() {
+        s3Client = new InMemoryS3Client();
+        // written well before any cutoff
+        s3Client.setClock(Clock.offset(Clock.systemUTC(), Duration.ofMinutes(-1)));
+        put(PREFIX);
+        for (int i = 0; i < 25; i++) {
+            put(PREFIX + "_" + i + ".si");
+        }
+        put(PREFIX + "sub/");
+        for (int i = 0; i < 5; i++) {
+            put(PREFIX + "sub/_" + i + ".si");
+        }
+        // not under the prefix
+        put("backups/snapshot.10/_0.si");
+        put("backups/snapshot.1");
+        s3Client.setClock(Clock.systemUTC());
+        s3Client.resetRequestCounts();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (executor != null) {
+            ExecutorUtil.shutdownAndAwaitTermination(executor);
+        }
+    }
+
+    private void put(String key) {
+        s3Client.putObject(PutObjectRequest.builder().bucket(S3Fixtures.BUCKET).key(key).build(),
+                RequestBody.fromBytes(new byte[key.endsWith("/") ? 0 : 100]));
+    }
+
+    private DirectoryDeletion deletion(int parallelBatches, TokenBucket rateLimiter) {
+        if (parallelBatches > 1) {
+            executor = S3StorageClient.newWorkerPool("test-delete", parallelBatches);
+        }
+        return new DirectoryDeletion(s3Client, S3Fixtures.BUCKET, PREFIX, BATCH_SIZE, parallelBatches,
+                executor, rateLimiter, null);
+    }
+
+    @Test
+    void testKeysAreDeletedPageByPageAndMarkersLast() throws Exception {
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        s3Client.onDeleteObjects(batches::add);
+
+        assertEquals(32, deletion(1, TokenBucket.UNLIMITED).delete());
+
+        assertEquals(Arrays.asList("backups/snapshot.1", "backups/snapshot.10/_0.si"),
+                new ArrayList<>(s3Client.objects().keySet()));
+        // one batch per page of the listing, then the markers, deepest first
+        assertEquals(s3Client.requestCount("ListObjectsV2") + 1, batches.size());
+        for (List<String> batch : batches) {
+            assertTrue(batch.size() <= BATCH_SIZE);
+        }
+        assertEquals(Arrays.asList(PREFIX + "sub/", PREFIX), batches.get(batches.size() - 1));
+    }
+
+    @Test
+    void testBatchesAreDeletedConcurrently() throws Exception {
+        CountDownLatch allStarted = new CountDownLatch(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        s3Client.onDeleteObjects(keys -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            allStarted.countDown();
+            try {
+                allStarted.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        });
+
+        assertEquals(32, deletion(3, TokenBucket.UNLIMITED).delete());
+
+        assertEquals(3, maxRunning.get());
+        assertEquals(2, s3Client.objects().size());
+    }
+
+    @Test
+    void testFailedBatchStopsDeletion() {
+        AtomicInteger batches = new AtomicInteger();
+        s3Client.onDeleteObjects(keys -> {
+            if (batches.incrementAndGet() == 2) {
+                throw InMemoryS3Client.serviceError(500, "InternalError");
+            }
+        });
+
+        assertThrows(S3Exception.class, () -> deletion(2, TokenBucket.UNLIMITED).delete());
+
+        // the directories of the files left are still there
+        assertTrue(s3Client.objects().containsKey(PREFIX));
+        assertTrue(s3Client.objects().containsKey(PREFIX + "sub/"));
+        assertTrue(s3Client.objects().size() > 4);
+    }
+
+    @Test
+    void testKeysAreDeletedOneByOneWithoutBatchDeletes() throws Exception {
+        s3Client.onDeleteObjects(keys -> {
+            throw InMemoryS3Client.serviceError(501, "NotImplemented");
+        });
+
+        assertEquals(32, deletion(1, TokenBucket.UNLIMITED).delete());
+
+        assertEquals(1, s3Client.requestCount("DeleteObjects"));
+        assertEquals(32, s3Client.requestCount("DeleteObject"));
+        assertEquals(2, s3Client.objects().size());
+    }
+
+    @Test
+    void testDeletionIsRateLimited() throws Exception {
+        // a burst of 20 keys, then 20 keys per second
+        TokenBucket rateLimiter = new TokenBucket(20);
+        long start = System.nanoTime();
+
+        assertEquals(32, deletion(1, rateLimiter).delete());
+
+        assertTrue(rateLimiter.getWaits() > 0);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    void testKeysModifiedAfterCutoffAreKept() throws Exception {
+        Instant cutoff = Instant.now();
+        // created again after the deletion was requested, within the same second
+        put(PREFIX + "sub/");
+        put(PREFIX + "sub/_0.si");
+
+        assertEquals(30, new DirectoryDeletion(s3Client, S3Fixtures.BUCKET, PREFIX, BATCH_SIZE, 1, null,
+                new TokenBucket(0), cutoff).delete());
+
+        assertEquals(Arrays.asList(PREFIX + "sub/", PREFIX + "sub/_0.si"),
+                s3Client.objects().keySet().stream().filter(key -> key.startsWith(PREFIX)).collect(Collectors.toList()));
+    }
+}
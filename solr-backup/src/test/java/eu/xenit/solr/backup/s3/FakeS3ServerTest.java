@@ -0,0 +1,115 @@
+package eu.xenit.solr.backup.s3;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Backups and restores through the SDK client and its HTTP client, against {@link FakeS3Server}.
+ */
+class FakeS3ServerTest {
+
+    private FakeS3Server server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = FakeS3Server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    /**
+     * @return the configuration of a repository using {@code server} as endpoint.
+     */
+    static NamedList<Object> args(FakeS3Server server, Object... keyValues) {
+        NamedList<Object> args = new NamedList<>();
+        args.add(S3BackupRepositoryConfig.S3_BUCKET_NAME, S3Fixtures.BUCKET);
+        args.add(S3BackupRepositoryConfig.S3_ENDPOINT, server.endpoint());
+        args.add(S3BackupRepositoryConfig.S3_REGION, "us-east-1");
+        args.add(S3BackupRepositoryConfig.S3_ACCESS_KEY, "access");
+        args.add(S3BackupRepositoryConfig.S3_SECRET_KEY, "secret");
+        args.add(S3BackupRepositoryConfig.S3_PATH_STYLE_ACCESS_ENABLED, true);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.add((String) keyValues[i], keyValues[i + 1]);
+        }
+        return args;
+    }
+
+    private static byte[] content(Directory directory, String fileName) throws IOException {
+        try (IndexInput input = directory.openInput(fileName, IOContext.READONCE)) {
+            byte[] content = new byte[(int) input.length()];
+            input.readBytes(content, 0, content.length);
+            return content;
+        }
+    }
+
+    private static void assertRestored(Directory expected, Directory restored) throws IOException {
+        assertEquals(new HashSet<>(Arrays.asList(expected.listAll())), new HashSet<>(Arrays.asList(restored.listAll())));
+        for (String fileName : expected.listAll()) {
+            assertArrayEquals(content(expected, fileName), content(restored, fileName), fileName);
+        }
+    }
+
+    @Test
+    void testBackupAndRestore() throws IOException {
+        Directory sourceDir = new RAMDirectory();
+        S3BackupRepositoryTest.writeIndexFile(sourceDir, "_0.si", 1024);
+        S3BackupRepositoryTest.writeIndexFile(sourceDir, "_0.cfs", 2 * S3OutputStream.MIN_PART_SIZE + 100);
+        S3BackupRepositoryTest.writeIndexFile(sourceDir, "segments_1", 100);
+        Directory restoreDir = new RAMDirectory();
+
+        try (S3BackupRepository repository = new S3BackupRepository()) {
+            repository.init(args(server,
+                    S3BackupRepositoryConfig.S3_UPLOAD_PART_SIZE, S3OutputStream.MIN_PART_SIZE,
+                    S3BackupRepositoryConfig.S3_DOWNLOAD_PARALLEL_RANGES, 4,
+                    S3BackupRepositoryConfig.S3_DOWNLOAD_RANGE_SIZE, 1024 * 1024));
+            URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+            repository.copyIndexFilesFrom(sourceDir, Arrays.asList(sourceDir.listAll()), dest);
+            repository.copyIndexFilesTo(dest, Arrays.asList(repository.listAll(dest)), restoreDir);
+
+            assertRestored(sourceDir, restoreDir);
+            assertEquals(3, server.store().requestCount("UploadPart"));
+            assertTrue(server.store().requestCount("GetObject") > 3, "the big file is restored in ranges");
+
+            repository.deleteDirectory(dest);
+            assertEquals(0, repository.listAll(repository.createDirectoryURI("/backups")).length);
+        }
+    }
+
+    @Test
+    void testSlowDownIsRetried() throws IOException {
+        server.latency(5).slowDownEvery(3);
+        Directory sourceDir = new RAMDirectory();
+        for (int i = 0; i < 10; i++) {
+            S3BackupRepositoryTest.writeIndexFile(sourceDir, "_" + i + ".cfs", 4096);
+        }
+        Directory restoreDir = new RAMDirectory();
+
+        try (S3BackupRepository repository = new S3BackupRepository()) {
+            repository.init(args(server));
+            URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+            repository.copyIndexFilesFrom(sourceDir, Arrays.asList(sourceDir.listAll()), dest);
+            repository.copyIndexFilesTo(dest, Arrays.asList(repository.listAll(dest)), restoreDir);
+        }
+
+        assertRestored(sourceDir, restoreDir);
+        assertTrue(server.slowDownCount() > 0);
+    }
+}
@@ -0,0 +1,113 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParallelRangeInputStreamTest {
+    static final String KEY = "backup/_0.cfs";
+    static final int RANGE_SIZE = 1000;
+
+    InMemoryS3Client s3Client;
+    ExecutorService executor;
+    BufferPool bufferPool;
+
+    @BeforeEach
+    void setup() {
+        s3Client = new InMemoryS3Client();
+        executor = S3StorageClient.newWorkerPool("test-download", 3);
+        bufferPool = new BufferPool(1 << 20, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void put(byte[] data) {
+        s3Client.putObject(PutObjectRequest.builder().bucket(S3Fixtures.BUCKET).key(KEY).build(),
+                RequestBody.fromBytes(data));
+        s3Client.resetRequestCounts();
+    }
+
+    private InputStream open() {
+        return new ParallelRangeInputStream(s3Client, S3Fixtures.BUCKET, KEY, RANGE_SIZE, 3, executor,
+                bufferPool);
+    }
+
+    @Test
+    void testRangesAreReassembledInOrder() throws IOException {
+        byte[] data = S3Fixtures.randomBytes(10 * RANGE_SIZE + 123);
+        put(data);
+
+        try (InputStream in = open()) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+
+        assertEquals(11, s3Client.requestCount("GetObject"));
+        assertEquals(0, s3Client.requestCount("HeadObject"));
+    }
+
+    @Test
+    void testSmallObjectCostsSingleRequest() throws IOException {
+        byte[] data = S3Fixtures.randomBytes(RANGE_SIZE - 1);
+        put(data);
+
+        try (InputStream in = open()) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+
+        assertEquals(1, s3Client.requestCount("GetObject"));
+    }
+
+    @Test
+    void testObjectReplacedDuringReadFails() throws IOException {
+        put(S3Fixtures.randomBytes(10 * RANGE_SIZE));
+
+        try (InputStream in = open()) {
+            assertEquals(RANGE_SIZE, in.readNBytes(RANGE_SIZE).length);
+            // the ranges after the ones in flight are asked for the first version only
+            put(S3Fixtures.randomBytes(10 * RANGE_SIZE + 1));
+            assertThrows(S3Exception.class, in::readAllBytes);
+        }
+    }
+
+    @Test
+    void testEmptyObject() throws IOException {
+        put(new byte[0]);
+
+        try (InputStream in = open()) {
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void testMissingObject() {
+        assertThrows(S3NotFoundException.class, () -> {
+            try (InputStream in = open()) {
+                in.read();
+            }
+        });
+    }
+
+    @Test
+    void testCloseBeforeEndReleasesBuffers() throws IOException {
+        put(S3Fixtures.randomBytes(10 * RANGE_SIZE));
+
+        try (InputStream in = open()) {
+            in.read(new byte[10]);
+        }
+
+        assertEquals(0, bufferPool.getLentBytes());
+    }
+}
@@ -1,20 +1,53 @@
 package eu.xenit.solr.backup.s3;
 
 
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.BufferedChecksumIndexInput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.core.backup.repository.BackupRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.ObjectName;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(MockitoExtension.class)
 class S3BackupRepositoryTest {
@@ -51,4 +84,627 @@ class S3BackupRepositoryTest {
                 () -> s3BackupRepository.createURI(""));
 
     }
+
+    @Test
+    void testSmallFilesAreUploadedWithSingleRequest() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client);
+
+        // The typical small files of a segment: each of them fits in a single part
+        String[] fileNames = {"_0.si", "_0.fnm", "_0.nvm", "_0.tvx", "_0.cfe", "segments_2"};
+        Directory sourceDir = new RAMDirectory();
+        for (String fileName : fileNames) {
+            writeIndexFile(sourceDir, fileName, 1024);
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        s3Client.resetRequestCounts();
+
+        for (String fileName : fileNames) {
+            repository.copyFileFrom(sourceDir, fileName, dest);
+        }
+
+        // Without the single request fast path, each file costs CreateMultipartUpload, UploadPart and
+        // CompleteMultipartUpload. Now it is a single PutObject. The directory marker is known to exist,
+        // so it is neither checked nor written again.
+        assertEquals(fileNames.length, s3Client.requestCount("PutObject"));
+        assertEquals(0, s3Client.requestCount("HeadObject"));
+        assertEquals(0, s3Client.requestCount("CreateMultipartUpload"));
+        assertEquals(0, s3Client.requestCount("UploadPart"));
+        assertEquals(0, s3Client.requestCount("CompleteMultipartUpload"));
+        for (String fileName : fileNames) {
+            assertEquals(sourceDir.fileLength(fileName), s3Client.content("backups/snapshot.1/" + fileName).length);
+        }
+    }
+
+    @Test
+    void testDirectoriesAreNotCheckedAgain() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3StorageClient storageClient = new S3StorageClient(s3Client, S3Fixtures.config());
+        S3BackupRepository repository = new S3BackupRepository();
+        repository.setClient(storageClient);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.si", 1024);
+
+        for (int i = 0; i < 3; i++) {
+            URI location = repository.createDirectoryURI("/backups");
+            if (!repository.exists(location)) {
+                repository.createDirectory(location);
+            }
+            URI dest = repository.resolveDirectory(location, "snapshot." + i);
+            repository.createDirectory(dest);
+            repository.copyFileFrom(sourceDir, "_0.si", dest);
+        }
+        int requests = s3Client.totalRequestCount();
+
+        // the parent of each snapshot is created, checked and found in the cache after the first one
+        assertEquals(1 + 3 * 2, s3Client.requestCount("PutObject"));
+        assertTrue(storageClient.getMetadataCache().getSavedRequests() > 0);
+
+        // a deleted directory is not remembered
+        URI deleted = repository.resolveDirectory(repository.createDirectoryURI("/backups"), "snapshot.0");
+        repository.deleteDirectory(deleted);
+        assertFalse(repository.exists(deleted));
+        assertTrue(s3Client.totalRequestCount() > requests);
+    }
+
+    @Test
+    void testImplicitDirectoriesHaveNoMarkers() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3StorageClient storageClient = new S3StorageClient(s3Client,
+                S3Fixtures.config(S3BackupRepositoryConfig.S3_DIRECTORY_IMPLICIT, true));
+        S3BackupRepository repository = new S3BackupRepository();
+        repository.setClient(storageClient);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.si", 1024);
+        writeIndexFile(sourceDir, "_0.cfs", 1024);
+
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        repository.copyFileFrom(sourceDir, "_0.si", dest);
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+
+        // only the files are written
+        assertEquals(2, s3Client.requestCount("PutObject"));
+        assertEquals(new HashSet<>(Arrays.asList("backups/snapshot.1/_0.si", "backups/snapshot.1/_0.cfs")),
+                s3Client.objects().keySet());
+
+        // a new client knows nothing about the directories, and lists a single key to check them
+        storageClient = new S3StorageClient(s3Client,
+                S3Fixtures.config(S3BackupRepositoryConfig.S3_DIRECTORY_IMPLICIT, true));
+        repository.setClient(storageClient);
+        s3Client.resetRequestCounts();
+        assertTrue(repository.exists(repository.createDirectoryURI("/backups")));
+        assertEquals(BackupRepository.PathType.DIRECTORY, repository.getPathType(dest));
+        assertEquals(BackupRepository.PathType.FILE, repository.getPathType(repository.resolve(dest, "_0.si")));
+        assertTrue(repository.exists(repository.resolve(dest, "_0.si")));
+        assertFalse(repository.exists(repository.resolve(dest, "_0")));
+        assertFalse(repository.exists(repository.resolveDirectory(dest, "missing")));
+        assertEquals(0, s3Client.requestCount("HeadObject"));
+        assertEquals(s3Client.totalRequestCount(), s3Client.requestCount("ListObjectsV2"));
+        String[] files = repository.listAll(dest);
+        Arrays.sort(files);
+        assertArrayEquals(new String[]{"_0.cfs", "_0.si"}, files);
+
+        repository.deleteDirectory(dest);
+        assertTrue(s3Client.objects().isEmpty());
+        assertFalse(repository.exists(dest));
+    }
+
+    @Test
+    void testEmptyImplicitDirectoryExistsWithoutCache() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_DIRECTORY_IMPLICIT, true,
+                S3BackupRepositoryConfig.S3_CACHE_TTL_MILLIS, 0);
+
+        // as Solr checks the location before its first backup
+        URI location = repository.createDirectoryURI("/backups");
+        repository.createDirectory(location);
+        assertTrue(repository.exists(location));
+        assertEquals(BackupRepository.PathType.DIRECTORY, repository.getPathType(location));
+        assertTrue(s3Client.objects().isEmpty());
+
+        repository.deleteDirectory(location);
+        assertFalse(repository.exists(location));
+    }
+
+    @Test
+    void testBackupDirectoryIsListedOnceForReading() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client);
+        String[] fileNames = {"_0.si", "_0.cfs", "_0.cfe", "segments_2"};
+        Directory sourceDir = new RAMDirectory();
+        for (String fileName : fileNames) {
+            writeIndexFile(sourceDir, fileName, 1024);
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        for (String fileName : fileNames) {
+            repository.copyFileFrom(sourceDir, fileName, dest);
+        }
+
+        // as on another node: nothing is cached
+        repository.setClient(new S3StorageClient(s3Client, S3Fixtures.config()));
+        s3Client.resetRequestCounts();
+        for (String fileName : fileNames) {
+            try (IndexInput input = repository.openInput(dest, fileName, IOContext.READONCE)) {
+                assertEquals(sourceDir.fileLength(fileName), input.length());
+            }
+            URI file = repository.resolve(dest, fileName);
+            assertTrue(repository.exists(file));
+            assertEquals(BackupRepository.PathType.FILE, repository.getPathType(file));
+        }
+        assertFalse(repository.exists(repository.resolve(dest, "_1.si")));
+
+        // the first file opened lists the directory, and no key is looked up, existing or not
+        assertEquals(1, s3Client.requestCount("ListObjectsV2"));
+        assertEquals(0, s3Client.requestCount("HeadObject"));
+
+        // a file written afterwards is not missed
+        writeIndexFile(sourceDir, "_1.si", 1024);
+        repository.copyFileFrom(sourceDir, "_1.si", dest);
+        assertTrue(repository.exists(repository.resolve(dest, "_1.si")));
+    }
+
+    @Test
+    void testLocalFileIsReadIntoPooledBuffers(@TempDir Path indexDir) throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3StorageClient storageClient = new S3StorageClient(s3Client,
+                S3Fixtures.config(S3BackupRepositoryConfig.S3_UPLOAD_PART_SIZE, S3OutputStream.MIN_PART_SIZE));
+        S3BackupRepository repository = new S3BackupRepository();
+        repository.setClient(storageClient);
+        Directory sourceDir = FSDirectory.open(indexDir);
+        writeIndexFile(sourceDir, "_0.cfs", 2 * S3OutputStream.MIN_PART_SIZE + 100);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+
+        assertArrayEquals(Files.readAllBytes(indexDir.resolve("_0.cfs")), s3Client.content("backups/snapshot.1/_0.cfs"));
+        assertEquals(3, s3Client.requestCount("UploadPart"));
+        assertEquals(1, storageClient.getBufferPool().getMisses() + storageClient.getBufferPool().getHits(),
+                "every part is read into the same pooled buffer");
+    }
+
+    @Test
+    void testCorruptLocalFileIsNotUploaded(@TempDir Path indexDir) throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client);
+        Directory sourceDir = FSDirectory.open(indexDir);
+        writeIndexFile(sourceDir, "_0.si", 1024);
+        try (RandomAccessFile file = new RandomAccessFile(indexDir.resolve("_0.si").toFile(), "rw")) {
+            file.seek(100);
+            file.write(file.read() ^ 0xFF);
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+
+        assertThrows(CorruptIndexException.class, () -> repository.copyFileFrom(sourceDir, "_0.si", dest));
+        assertFalse(s3Client.objects().containsKey("backups/snapshot.1/_0.si"));
+    }
+
+    @Test
+    void testFilesAreUploadedConcurrently() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_BACKUP_PARALLEL_FILES, 4);
+        Directory sourceDir = new RAMDirectory();
+        String[] fileNames = {"_0.si", "_0.cfs", "_0.cfe", "segments_2"};
+        for (String fileName : fileNames) {
+            writeIndexFile(sourceDir, fileName, 1024);
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        CountDownLatch allStarted = new CountDownLatch(fileNames.length);
+        AtomicBoolean concurrent = new AtomicBoolean(true);
+        s3Client.onPutObject(key -> {
+            allStarted.countDown();
+            try {
+                if (!allStarted.await(10, TimeUnit.SECONDS)) {
+                    concurrent.set(false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (key.endsWith("_0.cfe")) {
+                throw new IllegalStateException("simulated failure");
+            }
+        });
+
+        assertThrows(IOException.class, () -> repository.copyIndexFilesFrom(sourceDir, Arrays.asList(fileNames), dest));
+
+        assertTrue(concurrent.get(), "every file should have been uploaded at the same time");
+        assertEquals(new HashSet<>(Arrays.asList("_0.si", "_0.cfs", "segments_2")),
+                new HashSet<>(Arrays.asList(repository.listAll(dest))));
+        repository.close();
+    }
+
+    @Test
+    void testSingleFileIsUploadedBeforeCopyReturns() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_BACKUP_PARALLEL_FILES, 4);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 1024);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+
+        assertTrue(s3Client.objects().containsKey("backups/snapshot.1/_0.cfs"));
+        repository.close();
+    }
+
+    @Test
+    void testIncrementalBackupCopiesUnchangedFiles() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_BACKUP_INCREMENTAL, true);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 4096);
+        writeIndexFile(sourceDir, "segments_1", 100);
+        URI location = repository.createDirectoryURI("/backups");
+        URI first = repository.resolve(location, "snapshot.1");
+        repository.createDirectory(first);
+        repository.copyFileFrom(sourceDir, "_0.cfs", first);
+        repository.copyFileFrom(sourceDir, "segments_1", first);
+
+        // The next commit keeps _0.cfs, and rewrites segments_1 with the same length
+        sourceDir.deleteFile("segments_1");
+        writeIndexFile(sourceDir, "segments_1", 100, 42);
+        writeIndexFile(sourceDir, "_1.cfs", 2048);
+        URI second = repository.resolve(location, "snapshot.2");
+        repository.createDirectory(second);
+        s3Client.resetRequestCounts();
+        for (String fileName : new String[]{"_0.cfs", "segments_1", "_1.cfs"}) {
+            repository.copyFileFrom(sourceDir, fileName, second);
+        }
+
+        assertEquals(1, s3Client.requestCount("CopyObject"));
+        // Only the changed and the new file are uploaded
+        assertEquals(2, s3Client.requestCount("PutObject"));
+
+        // Every backup stands on its own
+        repository.deleteDirectory(first);
+        Directory restoreDir = new RAMDirectory();
+        for (String fileName : new String[]{"_0.cfs", "segments_1", "_1.cfs"}) {
+            repository.copyFileTo(second, fileName, restoreDir);
+            assertEquals(CodecUtil.retrieveChecksum(sourceDir.openInput(fileName, IOContext.READONCE)),
+                    CodecUtil.retrieveChecksum(restoreDir.openInput(fileName, IOContext.READONCE)));
+        }
+    }
+
+    @Test
+    void testUnchangedFileIsFoundAfterItsBackupWasListed() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_BACKUP_INCREMENTAL, true);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 4096);
+        URI location = repository.createDirectoryURI("/backups");
+        URI first = repository.resolve(location, "snapshot.1");
+        repository.createDirectory(first);
+        repository.copyFileFrom(sourceDir, "_0.cfs", first);
+        // caches the metadata of _0.cfs, without its checksum
+        assertArrayEquals(new String[]{"_0.cfs"}, repository.listAll(first));
+
+        URI second = repository.resolve(location, "snapshot.2");
+        repository.createDirectory(second);
+        s3Client.resetRequestCounts();
+        repository.copyFileFrom(sourceDir, "_0.cfs", second);
+
+        assertEquals(1, s3Client.requestCount("CopyObject"));
+        assertEquals(0, s3Client.requestCount("PutObject"));
+    }
+
+    @Test
+    void testSourceIsClosedWhenUnchangedFileCanNotBeCopied() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_BACKUP_INCREMENTAL, true);
+        AtomicInteger openInputs = new AtomicInteger();
+        Directory sourceDir = new FilterDirectory(new RAMDirectory()) {
+            @Override
+            public ChecksumIndexInput openChecksumInput(String name, IOContext context) throws IOException {
+                openInputs.incrementAndGet();
+                return new BufferedChecksumIndexInput(openInput(name, context)) {
+                    @Override
+                    public void close() throws IOException {
+                        openInputs.decrementAndGet();
+                        super.close();
+                    }
+                };
+            }
+        };
+        writeIndexFile(sourceDir, "_0.cfs", 4096);
+        repository.copyFileFrom(sourceDir, "_0.cfs", S3Fixtures.snapshot(repository, "snapshot.1"));
+        s3Client.onCopyObject(key -> {
+            throw InMemoryS3Client.serviceError(500, "InternalError");
+        });
+
+        URI second = S3Fixtures.snapshot(repository, "snapshot.2");
+        assertThrows(S3Exception.class, () -> repository.copyFileFrom(sourceDir, "_0.cfs", second));
+        assertEquals(0, openInputs.get());
+    }
+
+    @Test
+    void testLargeObjectIsCopiedInParts() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3StorageClient storageClient = new S3StorageClient(s3Client, S3Fixtures.config());
+        byte[] data = S3Fixtures.randomBytes(2500);
+        try (S3OutputStream stream = storageClient.pushStream("source")) {
+            stream.write(data);
+        }
+
+        storageClient.copyObjectInParts("source", "copy", data.length, 1000,
+                Collections.singletonMap(S3BackupRepository.CHECKSUM_METADATA, "1234"));
+
+        assertArrayEquals(data, s3Client.content("copy"));
+        assertEquals(3, s3Client.requestCount("UploadPartCopy"));
+        assertEquals("1234", storageClient.getUserMetadata("copy").get(S3BackupRepository.CHECKSUM_METADATA));
+    }
+
+    @Test
+    void testBufferPoolReducesAllocations() throws IOException {
+        long unpooled = allocatedBytesForBackupAndRestore(
+                S3Fixtures.config(S3BackupRepositoryConfig.S3_BUFFER_POOL_SIZE, 0));
+        long pooled = allocatedBytesForBackupAndRestore(S3Fixtures.config());
+
+        // Unpooled, every file allocates its own copy buffer and upload buffer
+        assertTrue(pooled < unpooled / 2,
+                "pooled backup allocated " + pooled + " bytes, unpooled backup " + unpooled + " bytes");
+    }
+
+    private static long allocatedBytesForBackupAndRestore(S3BackupRepositoryConfig config) throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3StorageClient storageClient = new S3StorageClient(s3Client, config);
+        S3BackupRepository repository = new S3BackupRepository();
+        repository.setClient(storageClient);
+
+        Directory sourceDir = new RAMDirectory();
+        Directory restoreDir = new RAMDirectory();
+        String[] fileNames = new String[20];
+        for (int i = 0; i < fileNames.length; i++) {
+            fileNames[i] = "_" + i + ".cfs";
+            writeIndexFile(sourceDir, fileNames[i], 512 * 1024);
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+
+        long before = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (String fileName : fileNames) {
+            repository.copyFileFrom(sourceDir, fileName, dest);
+        }
+        for (String fileName : fileNames) {
+            repository.copyFileTo(dest, fileName, restoreDir);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        for (String fileName : fileNames) {
+            assertEquals(sourceDir.fileLength(fileName), restoreDir.fileLength(fileName));
+        }
+        if (config.getBufferPoolSize() > 0) {
+            assertTrue(storageClient.getBufferPool().getHits() > 0);
+        }
+        return allocated;
+    }
+
+    @Test
+    void testCorruptBackupIsNotRestored() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 100 * 1024);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+        s3Client.content("backups/snapshot.1/_0.cfs")[100] ^= 0xFF;
+        Directory restoreDir = new RAMDirectory();
+
+        assertThrows(CorruptIndexException.class, () -> repository.copyFileTo(dest, "_0.cfs", restoreDir));
+        assertEquals(0, restoreDir.listAll().length, "no partial file is left behind");
+    }
+
+    @Test
+    void testCorruptDownloadIsRetried() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client, S3BackupRepositoryConfig.S3_RESTORE_RETRIES, 1);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 100 * 1024);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+        byte[] content = s3Client.content("backups/snapshot.1/_0.cfs");
+        // every download flips a byte, so only the first one is corrupt, as if by the network
+        s3Client.onGetObject(key -> content[100] ^= 0xFF);
+        s3Client.resetRequestCounts();
+        Directory restoreDir = new RAMDirectory();
+
+        repository.copyFileTo(dest, "_0.cfs", restoreDir);
+
+        assertEquals(2, s3Client.requestCount("GetObject"));
+        try (IndexInput input = restoreDir.openInput("_0.cfs", IOContext.READONCE)) {
+            CodecUtil.checksumEntireFile(input);
+        }
+    }
+
+    @Test
+    void testLocalFileIsRestoredInRanges(@TempDir Path indexDir) throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_DOWNLOAD_PARALLEL_RANGES, 4,
+                S3BackupRepositoryConfig.S3_DOWNLOAD_RANGE_SIZE, BufferPool.MIN_BUFFER_SIZE);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 5 * BufferPool.MIN_BUFFER_SIZE);
+        writeIndexFile(sourceDir, "_0.si", 100);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+        repository.copyFileFrom(sourceDir, "_0.si", dest);
+        s3Client.resetRequestCounts();
+        Directory restoreDir = FSDirectory.open(indexDir);
+
+        repository.copyFileTo(dest, "_0.cfs", restoreDir);
+        repository.copyFileTo(dest, "_0.si", restoreDir);
+
+        // 6 ranges for the big file, as its header and footer do not fit in 5, and one for the small one
+        assertEquals(7, s3Client.requestCount("GetObject"));
+        for (String fileName : new String[]{"_0.cfs", "_0.si"}) {
+            assertArrayEquals(s3Client.content("backups/snapshot.1/" + fileName),
+                    Files.readAllBytes(indexDir.resolve(fileName)));
+        }
+    }
+
+    @Test
+    void testCorruptRangeIsNotRestored(@TempDir Path indexDir) throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_DOWNLOAD_PARALLEL_RANGES, 4,
+                S3BackupRepositoryConfig.S3_DOWNLOAD_RANGE_SIZE, BufferPool.MIN_BUFFER_SIZE);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 5 * BufferPool.MIN_BUFFER_SIZE);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+        s3Client.content("backups/snapshot.1/_0.cfs")[3 * BufferPool.MIN_BUFFER_SIZE + 10] ^= 0xFF;
+        Directory restoreDir = FSDirectory.open(indexDir);
+
+        assertThrows(CorruptIndexException.class, () -> repository.copyFileTo(dest, "_0.cfs", restoreDir));
+        assertFalse(Files.exists(indexDir.resolve("_0.cfs")), "no partial file is left behind");
+    }
+
+    @Test
+    void testFilesAreRestoredConcurrentlyLargestFirst() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_RESTORE_PARALLEL_FILES, 2);
+        Directory sourceDir = new RAMDirectory();
+        String[] fileNames = {"_0.si", "_0.cfs", "_0.cfe", "segments_2"};
+        for (int i = 0; i < fileNames.length; i++) {
+            writeIndexFile(sourceDir, fileNames[i], 1024 * (i + 1));
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        for (String fileName : fileNames) {
+            repository.copyFileFrom(sourceDir, fileName, dest);
+        }
+        List<String> downloadOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        s3Client.onGetObject(key -> {
+            downloadOrder.add(key.substring(key.lastIndexOf('/') + 1));
+            bothStarted.countDown();
+            try {
+                // only returns when two files are downloaded at the same time
+                assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Directory restoreDir = new RAMDirectory();
+
+        repository.copyIndexFilesTo(dest, Arrays.asList(repository.listAll(dest)), restoreDir);
+
+        assertEquals(new HashSet<>(Arrays.asList(fileNames)), new HashSet<>(Arrays.asList(restoreDir.listAll())));
+        assertEquals(new HashSet<>(Arrays.asList("segments_2", "_0.cfe")), new HashSet<>(downloadOrder.subList(0, 2)));
+    }
+
+    @Test
+    void testFailedFilesAreReportedAfterAllFiles() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_RESTORE_PARALLEL_FILES, 2);
+        Directory sourceDir = new RAMDirectory();
+        String[] fileNames = {"_0.si", "_0.cfs", "_0.cfe"};
+        for (String fileName : fileNames) {
+            writeIndexFile(sourceDir, fileName, 1024);
+        }
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        for (String fileName : fileNames) {
+            repository.copyFileFrom(sourceDir, fileName, dest);
+        }
+        s3Client.content("backups/snapshot.1/_0.cfs")[100] ^= 0xFF;
+        Directory restoreDir = new RAMDirectory();
+
+        S3Exception e = assertThrows(S3Exception.class, () -> repository.copyIndexFilesTo(dest,
+                Arrays.asList("_0.si", "_0.cfs", "_0.cfe", "_0.missing"), restoreDir));
+
+        assertEquals(2, e.getSuppressed().length);
+        assertTrue(e.getMessage().contains("[_0.cfs, _0.missing]"), e.getMessage());
+        assertEquals(new HashSet<>(Arrays.asList("_0.si", "_0.cfe")), new HashSet<>(Arrays.asList(restoreDir.listAll())));
+    }
+
+    @Test
+    void testSessionsReportProgress() throws Exception {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client,
+                S3BackupRepositoryConfig.S3_UPLOAD_PART_SIZE, S3OutputStream.MIN_PART_SIZE);
+        Directory sourceDir = new RAMDirectory();
+        // uploaded in 3 parts
+        writeIndexFile(sourceDir, "_0.cfs", 2 * S3OutputStream.MIN_PART_SIZE + 100);
+        writeIndexFile(sourceDir, "_0.si", 100);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        long totalLength = sourceDir.fileLength("_0.cfs") + sourceDir.fileLength("_0.si");
+
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+        repository.copyFileFrom(sourceDir, "_0.si", dest);
+
+        TransferSessionMBean backup = repository.getTransferSession();
+        assertEquals("BACKUP", backup.getKind());
+        assertEquals(2, backup.getCompletedFiles());
+        assertEquals(totalLength, backup.getExpectedBytes());
+        assertEquals(totalLength, backup.getTransferredBytes());
+        assertEquals(100, backup.getPercentComplete());
+        assertEquals(0, backup.getEtaSeconds());
+        assertFalse(backup.isFinished());
+        ObjectName objectName = new ObjectName(S3Metrics.JMX_DOMAIN + ":type=TransferSession,name="
+                + ((TransferSession) backup).getName());
+        assertEquals(totalLength, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "TransferredBytes"));
+
+        // a restore lists the backup first, so its progress is known from the first file
+        repository.copyFileTo(dest, "_0.si", new RAMDirectory());
+
+        TransferSessionMBean restore = repository.getTransferSession();
+        assertTrue(backup.isFinished());
+        assertEquals("RESTORE", restore.getKind());
+        assertEquals(2, restore.getExpectedFiles());
+        assertEquals(1, restore.getCompletedFiles());
+        assertEquals(totalLength, restore.getExpectedBytes());
+        assertEquals(sourceDir.fileLength("_0.si"), restore.getTransferredBytes());
+        assertTrue(restore.getStatus().contains("1/2 files"), restore.getStatus());
+        assertTrue(backup.getStageBreakdown().contains("upload wait"), backup.getStageBreakdown());
+        assertTrue(restore.getStageBreakdown().contains("download wait"), restore.getStageBreakdown());
+        assertFalse(restore.isFinished());
+
+        // Solr does not close the repository, the restore finishes with its last file
+        repository.copyFileTo(dest, "_0.cfs", new RAMDirectory());
+        assertEquals(2, restore.getCompletedFiles());
+        assertTrue(restore.isFinished());
+        repository.close();
+    }
+
+    @Test
+    void testBackedUpFileIsCheckedInPlace() throws IOException {
+        InMemoryS3Client s3Client = new InMemoryS3Client();
+        S3BackupRepository repository = S3Fixtures.repository(s3Client);
+        Directory sourceDir = new RAMDirectory();
+        writeIndexFile(sourceDir, "_0.cfs", 3 * 1024 * 1024);
+        URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+        repository.copyFileFrom(sourceDir, "_0.cfs", dest);
+        s3Client.resetRequestCounts();
+
+        try (IndexInput input = repository.openInput(dest, "_0.cfs", IOContext.READONCE)) {
+            // reads the footer, then the whole file from the start
+            long checksum = CodecUtil.retrieveChecksum(input);
+            input.seek(0);
+            assertEquals(checksum, CodecUtil.checksumEntireFile(input));
+        }
+
+        // one block for the footer, and the three others for the rest of the file
+        assertEquals(4, s3Client.requestCount("GetObject"));
+    }
+
+    static void writeIndexFile(Directory directory, String fileName, int payloadLength) throws IOException {
+        writeIndexFile(directory, fileName, payloadLength, fileName.hashCode());
+    }
+
+    static void writeIndexFile(Directory directory, String fileName, int payloadLength, long seed)
+            throws IOException {
+        byte[] payload = new byte[payloadLength];
+        new Random(seed).nextBytes(payload);
+        try (IndexOutput output = directory.createOutput(fileName, IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(output, "test", 0);
+            output.writeBytes(payload, payload.length);
+            CodecUtil.writeFooter(output);
+        }
+    }
 }
\ No newline at end of file
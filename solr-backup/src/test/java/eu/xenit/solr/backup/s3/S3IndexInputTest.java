@@ -0,0 +1,169 @@
+package eu.xenit.solr.backup.s3;
+
+import org.apache.lucene.store.IndexInput;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3IndexInputTest {
+    static final String KEY = "backup/_0.cfs";
+    // bigger than the buffer of the input, so a refill of it reads a single block
+    static final int BLOCK_SIZE = 4 * S3IndexInput.LOCAL_BUFFER_SIZE;
+
+    InMemoryS3Client s3Client;
+    S3StorageClient client;
+
+    @BeforeEach
+    void setup() {
+        s3Client = new InMemoryS3Client();
+    }
+
+    private byte[] put(int length) {
+        byte[] data = S3Fixtures.randomBytes(length);
+        s3Client.putObject(PutObjectRequest.builder().bucket(S3Fixtures.BUCKET).key(KEY).build(),
+                RequestBody.fromBytes(data));
+        s3Client.resetRequestCounts();
+        return data;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    private S3IndexInput open(int cacheBlocks) throws IOException {
+        return open(cacheBlocks, 0);
+    }
+
+    private S3IndexInput open(int cacheBlocks, int readAheadBlocks) throws IOException {
+        client = new S3StorageClient(s3Client, S3Fixtures.config(
+                S3BackupRepositoryConfig.S3_READ_BLOCK_SIZE, BLOCK_SIZE,
+                S3BackupRepositoryConfig.S3_READ_CACHE_SIZE, cacheBlocks * BLOCK_SIZE,
+                S3BackupRepositoryConfig.S3_READ_AHEAD_BLOCKS, readAheadBlocks));
+        return new S3IndexInput(client.openBlockReader(KEY), KEY);
+    }
+
+    private static byte[] read(IndexInput input, long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        input.seek(position);
+        input.readBytes(bytes, 0, length);
+        return bytes;
+    }
+
+    @Test
+    void testSeekBackward() throws IOException {
+        byte[] data = put(10 * BLOCK_SIZE + 100);
+
+        try (IndexInput input = open(16)) {
+            assertEquals(data.length, input.length());
+            // the footer first, as Lucene does to check a file
+            assertArrayEquals(Arrays.copyOfRange(data, data.length - 16, data.length),
+                    read(input, data.length - 16, 16));
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 3 * BLOCK_SIZE), read(input, 0, 3 * BLOCK_SIZE));
+            assertArrayEquals(Arrays.copyOfRange(data, 100, 200), read(input, 100, 100));
+        }
+
+        // the last block, and the three first ones
+        assertEquals(4, s3Client.requestCount("GetObject"));
+    }
+
+    @Test
+    void testCloneAndSliceShareBlocks() throws IOException {
+        byte[] data = put(4 * BLOCK_SIZE);
+
+        try (IndexInput input = open(16)) {
+            IndexInput clone = input.clone();
+            IndexInput slice = input.slice("slice", BLOCK_SIZE + 10, 2 * BLOCK_SIZE);
+            IndexInput sliceOfSlice = slice.slice("nested", 10, 100);
+
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 2 * BLOCK_SIZE), read(input, 0, 2 * BLOCK_SIZE));
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 2 * BLOCK_SIZE), read(clone, 0, 2 * BLOCK_SIZE));
+            assertEquals(2 * BLOCK_SIZE, slice.length());
+            assertArrayEquals(Arrays.copyOfRange(data, BLOCK_SIZE + 10, 3 * BLOCK_SIZE + 10),
+                    read(slice, 0, 2 * BLOCK_SIZE));
+            assertArrayEquals(Arrays.copyOfRange(data, BLOCK_SIZE + 20, BLOCK_SIZE + 120),
+                    read(sliceOfSlice, 0, 100));
+            assertThrows(EOFException.class, () -> read(slice, 2 * BLOCK_SIZE - 1, 2));
+            assertThrows(IllegalArgumentException.class, () -> slice.slice("too long", 1, 2 * BLOCK_SIZE));
+        }
+
+        assertEquals(4, s3Client.requestCount("GetObject"));
+    }
+
+    @Test
+    void testLeastRecentlyUsedBlocksAreEvicted() throws IOException {
+        byte[] data = put(3 * BLOCK_SIZE);
+
+        try (IndexInput input = open(2)) {
+            read(input, 0, 1);
+            read(input, BLOCK_SIZE, 1);
+            read(input, 0, 1);
+            // evicts the second block, which was used least recently
+            read(input, 2 * BLOCK_SIZE, 1);
+            assertEquals(3, s3Client.requestCount("GetObject"));
+
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 1), read(input, 0, 1));
+            assertEquals(3, s3Client.requestCount("GetObject"));
+            read(input, BLOCK_SIZE, 1);
+            assertEquals(4, s3Client.requestCount("GetObject"));
+        }
+    }
+
+    @Test
+    void testOverwrittenFileIsNotMixedWithOldBlocks() throws IOException {
+        put(2 * BLOCK_SIZE);
+
+        try (IndexInput input = open(16)) {
+            read(input, 0, 1);
+            put(2 * BLOCK_SIZE + 1);
+            assertThrows(S3Exception.class, () -> read(input, BLOCK_SIZE, 1));
+        }
+    }
+
+    @Test
+    void testSequentialReaderIsReadAhead() throws IOException {
+        byte[] data = put(8 * BLOCK_SIZE + 10);
+
+        try (IndexInput input = open(16, 4)) {
+            byte[] read = new byte[data.length];
+            for (int position = 0; position < data.length; position += 1000) {
+                input.readBytes(read, position, Math.min(1000, data.length - position));
+            }
+            assertArrayEquals(data, read);
+        }
+
+        // every block is fetched once, most of them ahead of the reader
+        assertEquals(9, s3Client.requestCount("GetObject"));
+        assertTrue(client.getBlockCache().getPrefetches() >= 7);
+    }
+
+    @Test
+    void testReadAheadWindowShrinksOnJumps() {
+        S3BlockReader.ReadAhead readAhead = new S3BlockReader.ReadAhead(8, 0);
+
+        assertEquals(1, readAhead.onRead(0, 0));
+        assertEquals(2, readAhead.onRead(0, 0));
+        assertEquals(4, readAhead.onRead(1, 1));
+        assertEquals(8, readAhead.onRead(2, 3));
+        assertEquals(8, readAhead.onRead(4, 4));
+        assertEquals(4, readAhead.onRead(20, 20));
+        assertEquals(2, readAhead.onRead(3, 3));
+        assertEquals(1, readAhead.onRead(30, 30));
+        assertEquals(0, readAhead.onRead(0, 0));
+        // sequential again
+        assertEquals(1, readAhead.onRead(1, 1));
+    }
+}
@@ -0,0 +1,87 @@
+package eu.xenit.solr.backup.s3;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.http.SdkHttpRequest;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.metrics.MetricCollector;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class S3MetricsTest {
+
+    static MetricCollector apiCall(String operation, long millis, boolean successful, int... statusCodes) {
+        MetricCollector apiCall = MetricCollector.create("ApiCall");
+        apiCall.reportMetric(CoreMetric.OPERATION_NAME, operation);
+        apiCall.reportMetric(CoreMetric.API_CALL_DURATION, Duration.ofMillis(millis));
+        apiCall.reportMetric(CoreMetric.API_CALL_SUCCESSFUL, successful);
+        apiCall.reportMetric(CoreMetric.RETRY_COUNT, statusCodes.length - 1);
+        for (int statusCode : statusCodes) {
+            apiCall.createChild("ApiCallAttempt").reportMetric(HttpMetric.HTTP_STATUS_CODE, statusCode);
+        }
+        return apiCall;
+    }
+
+    @Test
+    void testApiCallsAreRecordedPerOperation() {
+        S3Metrics metrics = new S3Metrics(new MetricRegistry());
+
+        metrics.publish(apiCall("UploadPart", 40, true, 200).collect());
+        metrics.publish(apiCall("UploadPart", 60, true, 503, 503, 200).collect());
+        metrics.publish(apiCall("HeadObject", 5, false, 500, 500).collect());
+
+        assertEquals(2, metrics.requests("UploadPart").getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(60), metrics.requests("UploadPart").getSnapshot().getMax());
+        assertEquals(1, metrics.requests("HeadObject").getCount());
+        assertEquals(1, metrics.getRegistry().meter("failures.HeadObject").getCount());
+        assertEquals(0, metrics.getRegistry().meter("failures.UploadPart").getCount());
+        assertEquals(3, metrics.getRetries().getCount());
+        assertEquals(2, metrics.getThrottled().getCount());
+    }
+
+    @Test
+    void testBytesAreCountedInBothDirections() {
+        S3Metrics metrics = new S3Metrics(new MetricRegistry());
+        SdkHttpRequest request = SdkHttpRequest.builder()
+                .method(SdkHttpMethod.PUT)
+                .protocol("https")
+                .host("bucket.s3.amazonaws.com")
+                .putHeader("Content-Length", "1000")
+                .build();
+        SdkHttpResponse response = SdkHttpResponse.builder()
+                .statusCode(200)
+                .putHeader("Content-Length", "42")
+                .build();
+        Context.BeforeTransmission beforeTransmission = Mockito.mock(Context.BeforeTransmission.class);
+        Mockito.when(beforeTransmission.httpRequest()).thenReturn(request);
+        Context.AfterTransmission afterTransmission = Mockito.mock(Context.AfterTransmission.class);
+        Mockito.when(afterTransmission.httpResponse()).thenReturn(response);
+
+        metrics.beforeTransmission(beforeTransmission, new ExecutionAttributes());
+        metrics.afterTransmission(afterTransmission, new ExecutionAttributes());
+
+        assertEquals(1000, metrics.getBytesSent().getCount());
+        assertEquals(42, metrics.getBytesReceived().getCount());
+    }
+
+    @Test
+    void testMetricsArePublishedThroughJmx() throws Exception {
+        S3Metrics.getInstance();
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer()
+                .queryNames(new ObjectName(S3Metrics.JMX_DOMAIN + ":*"), null)
+                .isEmpty());
+    }
+}
@@ -0,0 +1,269 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static eu.xenit.solr.backup.s3.S3Fixtures.config;
+import static eu.xenit.solr.backup.s3.S3Fixtures.randomBytes;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3OutputStreamTest {
+    static final String KEY = "backup/_0.fdt";
+
+    InMemoryS3Client s3Client;
+    ExecutorService executor;
+
+    @BeforeEach
+    void setup() {
+        s3Client = new InMemoryS3Client();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private S3OutputStream parallelStream(int parallelParts) {
+        S3BackupRepositoryConfig config = config(S3BackupRepositoryConfig.S3_UPLOAD_PARALLEL_PARTS, parallelParts);
+        executor = S3StorageClient.newWorkerPool("test-upload", parallelParts);
+        return new S3OutputStream(s3Client, KEY, config, -1, executor,
+                new Semaphore(config.getUploadMaxInFlightBytes()), null);
+    }
+
+    @Test
+    void testPartsUploadedConcurrentlyAreCompletedInOrder() throws IOException {
+        AtomicInteger concurrentUploads = new AtomicInteger();
+        AtomicInteger maxConcurrentUploads = new AtomicInteger();
+        s3Client.onUploadPart(partNumber -> {
+            maxConcurrentUploads.accumulateAndGet(concurrentUploads.incrementAndGet(), Math::max);
+            try {
+                // earlier parts finish last
+                TimeUnit.MILLISECONDS.sleep(200L / partNumber);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrentUploads.decrementAndGet();
+        });
+        byte[] data = randomBytes(3 * S3OutputStream.PART_SIZE + 1234);
+
+        try (S3OutputStream stream = parallelStream(3)) {
+            stream.write(data, 0, data.length);
+        }
+
+        assertArrayEquals(data, s3Client.content(KEY));
+        assertEquals(4, s3Client.requestCount("UploadPart"));
+        assertTrue(maxConcurrentUploads.get() > 1, "parts should have been uploaded concurrently");
+        assertTrue(maxConcurrentUploads.get() <= 3, "no more parts in flight than configured");
+    }
+
+    @Test
+    void testFailedPartAbortsUpload() {
+        s3Client.onUploadPart(partNumber -> {
+            if (partNumber == 2) {
+                throw new IllegalStateException("simulated failure of part " + partNumber);
+            }
+        });
+        byte[] data = randomBytes(4 * S3OutputStream.PART_SIZE);
+
+        assertThrows(S3Exception.class, () -> {
+            try (S3OutputStream stream = parallelStream(2)) {
+                stream.write(data, 0, data.length);
+            }
+        });
+
+        assertFalse(s3Client.objects().containsKey(KEY));
+        assertEquals(1, s3Client.requestCount("AbortMultipartUpload"));
+        assertEquals(0, s3Client.requestCount("CompleteMultipartUpload"));
+        assertEquals(0, s3Client.pendingUploads());
+    }
+
+    @Test
+    void testSequentialUploadByDefault() throws IOException {
+        byte[] data = randomBytes(2 * S3OutputStream.PART_SIZE + 10);
+
+        try (S3OutputStream stream = new S3OutputStream(s3Client, KEY, config())) {
+            stream.write(data, 0, data.length);
+        }
+
+        assertArrayEquals(data, s3Client.content(KEY));
+        assertEquals(3, s3Client.requestCount("UploadPart"));
+    }
+
+    @Test
+    void testSmallFileIsUploadedWithSinglePutObject() throws IOException {
+        byte[] data = randomBytes(4096);
+
+        try (S3OutputStream stream = new S3OutputStream(s3Client, KEY, config())) {
+            stream.write(data, 0, data.length);
+        }
+
+        assertArrayEquals(data, s3Client.content(KEY));
+        assertEquals(1, s3Client.totalRequestCount());
+        assertEquals(1, s3Client.requestCount("PutObject"));
+    }
+
+    @Test
+    void testEmptyStreamCreatesEmptyObject() throws IOException {
+        new S3OutputStream(s3Client, KEY, config()).close();
+
+        assertArrayEquals(new byte[0], s3Client.content(KEY));
+        assertEquals(1, s3Client.requestCount("PutObject"));
+    }
+
+    @Test
+    void testPartSizeKeepsPartCountBelowTarget() {
+        assertEquals(S3OutputStream.PART_SIZE, S3OutputStream.partSizeFor(1024, S3OutputStream.PART_SIZE, 1000));
+        assertEquals(S3OutputStream.PART_SIZE,
+                S3OutputStream.partSizeFor(1000L * S3OutputStream.PART_SIZE, S3OutputStream.PART_SIZE, 1000));
+        // 100 GB in 800 parts of 128 MB
+        assertEquals(8 * S3OutputStream.PART_SIZE,
+                S3OutputStream.partSizeFor(100L << 30, S3OutputStream.PART_SIZE, 1000));
+        assertEquals(S3OutputStream.MAX_PART_SIZE,
+                S3OutputStream.partSizeFor(Long.MAX_VALUE, S3OutputStream.PART_SIZE, 1000));
+    }
+
+    @Test
+    void testBufferIsSizedForKnownLength() throws IOException {
+        byte[] data = randomBytes(1500);
+
+        try (S3OutputStream stream = new S3OutputStream(s3Client, KEY, config(), data.length, null, null, null)) {
+            assertEquals(data.length, stream.getBufferCapacity());
+            stream.write(data, 0, data.length);
+        }
+
+        assertArrayEquals(data, s3Client.content(KEY));
+    }
+
+    @Test
+    void testKnownLengthUsesBiggerParts() throws IOException {
+        byte[] data = randomBytes(3 * S3OutputStream.PART_SIZE + 10);
+        S3BackupRepositoryConfig config = config(S3BackupRepositoryConfig.S3_UPLOAD_TARGET_PART_COUNT, 2);
+
+        try (S3OutputStream stream = new S3OutputStream(s3Client, KEY, config, data.length, null, null, null)) {
+            assertEquals(2 * S3OutputStream.PART_SIZE, stream.getPartSize());
+            stream.write(data, 0, data.length);
+        }
+
+        assertArrayEquals(data, s3Client.content(KEY));
+        assertEquals(2, s3Client.requestCount("UploadPart"));
+    }
+
+    @Test
+    void testPartSizeGrowsForUnknownLength() throws IOException {
+        byte[] data = randomBytes(3 * S3OutputStream.MIN_PART_SIZE + 1024);
+        S3BackupRepositoryConfig config = config(
+                S3BackupRepositoryConfig.S3_UPLOAD_PART_SIZE, S3OutputStream.MIN_PART_SIZE,
+                S3BackupRepositoryConfig.S3_UPLOAD_TARGET_PART_COUNT, 10);
+
+        try (S3OutputStream stream = new S3OutputStream(s3Client, KEY, config)) {
+            assertEquals(S3OutputStream.MIN_BUFFER_SIZE, stream.getBufferCapacity());
+            for (byte b : data) {
+                stream.write(b);
+            }
+        }
+
+        // Parts of 5 MB, 10 MB and the remaining 1 KB, instead of four 5 MB parts
+        assertArrayEquals(data, s3Client.content(KEY));
+        assertEquals(3, s3Client.requestCount("UploadPart"));
+    }
+
+    @Test
+    void testFailedPutObjectReleasesItsBuffer() throws IOException {
+        BufferPool pool = new BufferPool(config().getBufferPoolSize(), 0);
+        S3OutputStream stream = new S3OutputStream(s3Client, KEY, config(), -1, null, null, pool);
+        stream.write(randomBytes(1024));
+        s3Client.onPutObject(key -> {
+            throw InMemoryS3Client.serviceError(500, "InternalError");
+        });
+
+        assertThrows(S3Exception.class, stream::close);
+        assertEquals(0, pool.getLentBytes());
+        // closed, so it is not sent again
+        stream.close();
+        assertEquals(1, s3Client.requestCount("PutObject"));
+    }
+
+    @Test
+    void testByteBufferPartsAreUploadedWithoutCopy() throws IOException {
+        byte[] data = randomBytes(2 * S3OutputStream.PART_SIZE + 1000);
+        S3BackupRepositoryConfig config = config(S3BackupRepositoryConfig.S3_UPLOAD_PARALLEL_PARTS, 2);
+        executor = S3StorageClient.newWorkerPool("test-upload", 2);
+        BufferPool pool = new BufferPool(config.getBufferPoolSize(), 0);
+
+        try (S3OutputStream stream = new S3OutputStream(s3Client, KEY, config, data.length, executor,
+                new Semaphore(config.getUploadMaxInFlightBytes()), pool)) {
+            // a few bytes first, so the first part is copied into a buffer
+            stream.write(data, 0, 10);
+            stream.write(ByteBuffer.wrap(data, 10, data.length - 10));
+        }
+
+        assertArrayEquals(data, s3Client.content(KEY));
+        assertEquals(3, s3Client.requestCount("UploadPart"));
+        assertEquals(1, pool.getMisses(), "only the first part is buffered");
+    }
+
+    @Test
+    void testAbortReleasesPermitsOfQueuedParts() throws IOException, InterruptedException {
+        S3BackupRepositoryConfig config = config(S3BackupRepositoryConfig.S3_UPLOAD_PARALLEL_PARTS, 2);
+        Semaphore bufferBudget = new Semaphore(config.getUploadMaxInFlightBytes());
+        // a single worker, so the second part waits in the queue of the executor
+        executor = S3StorageClient.newWorkerPool("test-upload", 1);
+        CountDownLatch firstPartStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstPart = new CountDownLatch(1);
+        s3Client.onUploadPart(partNumber -> {
+            firstPartStarted.countDown();
+            try {
+                releaseFirstPart.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        byte[] data = randomBytes(2 * S3OutputStream.PART_SIZE + 10);
+
+        S3OutputStream stream = new S3OutputStream(s3Client, KEY, config, -1, executor, bufferBudget, null);
+        stream.write(data, 0, data.length);
+        assertTrue(firstPartStarted.await(10, TimeUnit.SECONDS));
+        new Thread(() -> {
+            try {
+                // lets the abort start first
+                TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            releaseFirstPart.countDown();
+        }).start();
+        stream.abort();
+
+        assertEquals(config.getUploadMaxInFlightBytes(), bufferBudget.availablePermits());
+        assertEquals(1, s3Client.requestCount("UploadPart"), "the queued part is skipped");
+        assertEquals(0, s3Client.pendingUploads());
+    }
+
+    @Test
+    void testAbortDiscardsWrittenData() throws IOException {
+        byte[] data = randomBytes(S3OutputStream.PART_SIZE + 10);
+
+        S3OutputStream stream = parallelStream(2);
+        stream.write(data, 0, data.length);
+        stream.abort();
+        stream.close();
+
+        assertFalse(s3Client.objects().containsKey(KEY));
+        assertEquals(0, s3Client.pendingUploads());
+    }
+}
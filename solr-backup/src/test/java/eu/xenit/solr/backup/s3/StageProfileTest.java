@@ -0,0 +1,43 @@
+package eu.xenit.solr.backup.s3;
+
+import eu.xenit.solr.backup.s3.StageProfile.Stage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StageProfileTest {
+
+    private static void add(StageProfile profile, Stage stage, long millis) {
+        profile.addSince(stage, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    void testBreakdownIsLargestFirst() {
+        StageProfile profile = new StageProfile();
+        assertEquals("none", profile.breakdown());
+
+        add(profile, Stage.METADATA, 80);
+        add(profile, Stage.UPLOAD_WAIT, 620);
+        add(profile, Stage.DISK_READ, 300);
+
+        assertEquals("62% upload wait, 30% disk read, 8% metadata", profile.breakdown());
+    }
+
+    @Test
+    void testFilesAddUpInTheSession() {
+        StageProfile session = new StageProfile();
+        StageProfile first = new StageProfile();
+        add(first, Stage.DOWNLOAD_WAIT, 300);
+        StageProfile second = new StageProfile();
+        add(second, Stage.DOWNLOAD_WAIT, 300);
+        add(second, Stage.DISK_WRITE, 400);
+
+        session.add(first);
+        session.add(second);
+
+        assertEquals("60% download wait, 40% disk write", session.breakdown());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(400), session.getNanos(Stage.DISK_WRITE), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
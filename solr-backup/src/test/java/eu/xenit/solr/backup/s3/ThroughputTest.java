@@ -0,0 +1,149 @@
+package eu.xenit.solr.backup.s3;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Backs up and restores a synthetic index through {@link S3BackupRepository}, against a {@link
+ * FakeS3Server}, and reports the throughput of both. Not part of the regular tests, run it with
+ * {@code ./gradlew :solr-backup:throughputTest}.
+ *
+ * <p>System properties:
+ * <ul>
+ *     <li>{@code throughput.indexSizeMb}: size of the index, 64 by default</li>
+ *     <li>{@code throughput.latencyMillis}: latency of every request, 20 by default</li>
+ *     <li>{@code throughput.bandwidthMbPerSecond}: bandwidth of the endpoint, unlimited by default</li>
+ *     <li>{@code throughput.slowDownEvery}: answer every nth request with SlowDown, never by default</li>
+ *     <li>{@code s3.*}: any setting of the repository, e.g. {@code s3.upload.parallelParts}</li>
+ * </ul>
+ */
+@Tag("throughput")
+class ThroughputTest {
+
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * Documents with a random text and a random stored blob, so the files hardly compress, until the
+     * index is about {@code sizeBytes}.
+     *
+     * @return the number of documents.
+     */
+    private static int writeIndex(Directory directory, long sizeBytes) throws IOException {
+        Random random = new Random(42);
+        byte[] blob = new byte[16 * 1024];
+        StringBuilder text = new StringBuilder();
+        int docs = 0;
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer()).setRAMBufferSizeMB(64);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            while (sizeOf(directory) + writer.ramBytesUsed() < sizeBytes) {
+                for (int i = 0; i < 100; i++, docs++) {
+                    random.nextBytes(blob);
+                    text.setLength(0);
+                    for (int word = 0; word < 200; word++) {
+                        text.append(Integer.toString(random.nextInt(100_000), 36)).append(' ');
+                    }
+                    Document document = new Document();
+                    document.add(new StringField("id", Integer.toString(docs), Field.Store.YES));
+                    document.add(new TextField("text", text.toString(), Field.Store.NO));
+                    document.add(new StoredField("blob", blob));
+                    writer.addDocument(document);
+                }
+            }
+            writer.commit();
+        }
+        return docs;
+    }
+
+    private static long sizeOf(Directory directory) throws IOException {
+        long size = 0;
+        for (String file : directory.listAll()) {
+            size += directory.fileLength(file);
+        }
+        return size;
+    }
+
+    private static NamedList<Object> args(FakeS3Server server) {
+        List<Object> keyValues = new ArrayList<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("s3.")) {
+                keyValues.add(name);
+                keyValues.add(System.getProperty(name));
+            }
+        }
+        return FakeS3ServerTest.args(server, keyValues.toArray());
+    }
+
+    private static void report(String operation, long bytes, long nanos, long httpRequests,
+                               TransferSessionMBean session) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        System.out.printf(Locale.ROOT, "%s: %d MB in %d ms, %.1f MB/s, %d HTTP requests%n",
+                operation, bytes / MB, millis, bytes / (double) MB / Math.max(1, millis) * 1000, httpRequests);
+        System.out.printf(Locale.ROOT, "    requests: %s%n    stages: %s%n",
+                session.getRequestSummary(), session.getStageBreakdown());
+    }
+
+    @Test
+    void testThroughput(@TempDir Path tempDir) throws IOException {
+        long indexSize = Long.getLong("throughput.indexSizeMb", 64) * MB;
+        Directory indexDir = FSDirectory.open(tempDir.resolve("index"));
+        int docs = writeIndex(indexDir, indexSize);
+        List<String> files = new ArrayList<>(SegmentInfos.readLatestCommit(indexDir).files(true));
+        long bytes = 0;
+        for (String file : files) {
+            bytes += indexDir.fileLength(file);
+        }
+        Directory restoreDir = FSDirectory.open(tempDir.resolve("restore"));
+
+        try (FakeS3Server server = FakeS3Server.start()) {
+            server.latency(Long.getLong("throughput.latencyMillis", 20))
+                    .bandwidth(Long.getLong("throughput.bandwidthMbPerSecond", 0) * MB)
+                    .slowDownEvery(Integer.getInteger("throughput.slowDownEvery", 0));
+            S3BackupRepository repository = new S3BackupRepository();
+            repository.init(args(server));
+            URI dest = S3Fixtures.snapshot(repository, "snapshot.1");
+
+            long requests = server.requestCount();
+            long start = System.nanoTime();
+            repository.copyIndexFilesFrom(indexDir, files, dest);
+            report("Backup", bytes, System.nanoTime() - start, server.requestCount() - requests,
+                    repository.getTransferSession());
+
+            requests = server.requestCount();
+            start = System.nanoTime();
+            repository.copyIndexFilesTo(dest, files, restoreDir);
+            long restoreNanos = System.nanoTime() - start;
+            repository.close();
+            report("Restore", bytes, restoreNanos, server.requestCount() - requests, repository.getTransferSession());
+            System.out.printf(Locale.ROOT, "SlowDown responses: %d%n", server.slowDownCount());
+        }
+
+        try (DirectoryReader reader = DirectoryReader.open(restoreDir)) {
+            assertEquals(docs, reader.numDocs());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static eu.xenit.solr.backup.s3.S3MetricsTest.apiCall;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransferSessionTest {
+
+    @Test
+    void testRequestsAreCountedIntoTheCurrentSession() {
+        RequestAccounting accounting = new RequestAccounting();
+        // sent before the session starts, e.g. for the backup directory
+        accounting.publish(apiCall("HeadObject", 5, true, 404).collect());
+        accounting.publish(apiCall("PutObject", 5, true, 200).collect());
+        TransferSession session = new TransferSession(TransferSession.Kind.BACKUP);
+
+        accounting.setSession(session);
+        accounting.publish(apiCall("CreateMultipartUpload", 5, true, 200).collect());
+        accounting.publish(apiCall("UploadPart", 40, true, 200).collect());
+        // every attempt is billed
+        accounting.publish(apiCall("UploadPart", 60, true, 503, 200).collect());
+        accounting.publish(apiCall("CompleteMultipartUpload", 5, true, 200).collect());
+        accounting.publish(apiCall("DeleteObjects", 5, true, 200).collect());
+
+        Map<String, Long> expected = new TreeMap<>();
+        expected.put("CompleteMultipartUpload", 1L);
+        expected.put("CreateMultipartUpload", 1L);
+        expected.put("DeleteObjects", 1L);
+        expected.put("HeadObject", 1L);
+        expected.put("PutObject", 1L);
+        expected.put("UploadPart", 3L);
+        assertEquals(expected, session.getRequests());
+        assertEquals(8, session.getRequestCount());
+        assertEquals(6, session.getWriteRequests());
+        assertEquals(1, session.getReadRequests());
+        assertTrue(session.getRequestSummary().startsWith("8 requests (6 write, 1 read) CompleteMultipartUpload=1"),
+                session.getRequestSummary());
+        assertTrue(accounting.getPending().isEmpty());
+    }
+
+    @Test
+    void testRequestsWithoutSessionAreKeptForTheNextOne() {
+        RequestAccounting accounting = new RequestAccounting();
+        TransferSession first = new TransferSession(TransferSession.Kind.BACKUP);
+        accounting.setSession(first);
+        accounting.publish(apiCall("PutObject", 5, true, 200).collect());
+
+        accounting.setSession(null);
+        accounting.publish(apiCall("ListObjectsV2", 5, true, 200).collect());
+        TransferSession second = new TransferSession(TransferSession.Kind.RESTORE);
+        accounting.setSession(second);
+        accounting.publish(apiCall("GetObject", 5, true, 200).collect());
+
+        assertEquals(1, first.getRequestCount());
+        assertEquals(2, second.getRequestCount());
+        assertEquals(1, second.getWriteRequests());
+        assertEquals(1, second.getReadRequests());
+    }
+
+    @Test
+    void testSessionFinishesWithTheLastFileOfItsEstimate() {
+        TransferSession session = TransferSession.start(TransferSession.Kind.RESTORE, false, 0);
+        session.estimate(2, 200);
+        session.expectFile(100);
+        session.expectFile(100);
+
+        session.fileCompleted();
+        assertFalse(session.isFinished());
+        session.fileCompleted();
+        assertTrue(session.isFinished());
+    }
+
+    @Test
+    void testSessionWithoutEstimateFinishesWhenIdle() throws InterruptedException {
+        TransferSession session = TransferSession.start(TransferSession.Kind.BACKUP, false, 50);
+        session.expectFile(100);
+        session.transferred(100);
+        session.fileCompleted();
+        assertFalse(session.isFinished());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!session.isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(session.isFinished());
+    }
+}
@@ -0,0 +1,85 @@
+package eu.xenit.solr.backup.s3;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadSchedulerTest {
+
+    UploadScheduler scheduler;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    void testLargestPendingUploadStartsFirst() throws Exception {
+        scheduler = new UploadScheduler(1, 10);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> order = new CopyOnWriteArrayList<>();
+
+        scheduler.schedule("busy", 1, () -> { }, () -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (long length : new long[]{10, 1000, 100}) {
+            scheduler.schedule("file-" + length, length, () -> { }, () -> order.add(length));
+        }
+        assertEquals(0, order.size(), "uploads wait for a free worker");
+        release.countDown();
+        scheduler.awaitCompletion(true);
+
+        assertEquals(Arrays.asList(1000L, 100L, 10L), order);
+    }
+
+    @Test
+    void testFailureIsThrownOnce() throws Exception {
+        scheduler = new UploadScheduler(2, 10);
+        IOException failure = new IOException("simulated failure");
+
+        scheduler.schedule("failing", 1, () -> { }, () -> {
+            throw failure;
+        });
+
+        assertSame(failure, assertThrows(IOException.class, () -> scheduler.awaitCompletion(true)));
+        scheduler.awaitCompletion(true);
+    }
+
+    @Test
+    void testScheduleAfterFailureClosesResource() throws Exception {
+        scheduler = new UploadScheduler(2, 10);
+        scheduler.schedule("failing", 1, () -> { }, () -> {
+            throw new IOException("simulated failure");
+        });
+        scheduler.awaitCompletion(false);
+        AtomicBoolean closed = new AtomicBoolean();
+
+        assertThrows(IOException.class, () -> scheduler.schedule("next", 1, () -> closed.set(true), () -> { }));
+        assertTrue(closed.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
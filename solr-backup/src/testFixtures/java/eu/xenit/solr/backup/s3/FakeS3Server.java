@@ -0,0 +1,563 @@
+package eu.xenit.solr.backup.s3;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.DeletedObject;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * S3 endpoint served over HTTP on a local port, so the backup repository can be tested end to end
+ * through the SDK client, its HTTP connection pool, signing, retries and metrics. Requests must use
+ * path style addressing, and are served from an {@link InMemoryS3Client}, which also counts them per
+ * operation. Bucket names and signatures are not checked.
+ *
+ * <p>Supported: PUT (also as a copy), GET with a range, HEAD, DELETE, ListObjectsV2, multipart
+ * uploads (also with copied parts) and DeleteObjects.
+ *
+ * <p>To see how transfers behave against a slow or throttling endpoint, every request can be delayed,
+ * the bytes of all requests together can be capped to a bandwidth, and a share of the requests can be
+ * answered with {@code 503 SlowDown}.
+ */
+class FakeS3Server implements Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String XML_HEADER =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String NAMESPACE = " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"";
+    private static final String METADATA_PREFIX = "x-amz-meta-";
+
+    private final InMemoryS3Client store = new InMemoryS3Client();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger slowDowns = new AtomicInteger();
+
+    private volatile long latencyMillis;
+    private volatile TokenBucket bandwidth = TokenBucket.UNLIMITED;
+    private volatile int slowDownEvery;
+
+    private FakeS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-s3-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    /**
+     * @return a server listening on a free port of the loopback address.
+     */
+    static FakeS3Server start() throws IOException {
+        FakeS3Server fakeS3Server = new FakeS3Server();
+        fakeS3Server.server.start();
+        return fakeS3Server;
+    }
+
+    /**
+     * @return the URL to configure as {@code s3.endpoint}.
+     */
+    String endpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the objects, also to count the requests per operation.
+     */
+    InMemoryS3Client store() {
+        return store;
+    }
+
+    /**
+     * Delay every request by {@code millis} before it is answered, like the round trip to a remote
+     * endpoint.
+     */
+    FakeS3Server latency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Cap the bytes sent and received by all requests together to {@code bytesPerSecond}, or remove
+     * the cap with 0.
+     */
+    FakeS3Server bandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : TokenBucket.UNLIMITED;
+        return this;
+    }
+
+    /**
+     * Answer every {@code n}th request with {@code 503 SlowDown}, as S3 does when a prefix gets more
+     * requests than it allows, or never with 0.
+     */
+    FakeS3Server slowDownEvery(int n) {
+        this.slowDownEvery = n;
+        return this;
+    }
+
+    /**
+     * @return the number of requests received, including the ones answered with SlowDown.
+     */
+    long requestCount() {
+        return requests.get();
+    }
+
+    int slowDownCount() {
+        return slowDowns.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            long request = requests.incrementAndGet();
+            byte[] body = readBody(exchange);
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            int every = slowDownEvery;
+            if (every > 0 && request % every == 0) {
+                slowDowns.incrementAndGet();
+                sendError(exchange, 503, "SlowDown", "Please reduce your request rate.");
+                return;
+            }
+            dispatch(exchange, body);
+        } catch (software.amazon.awssdk.services.s3.model.S3Exception e) {
+            String errorCode = e.awsErrorDetails() == null ? "InternalError" : e.awsErrorDetails().errorCode();
+            sendError(exchange, e.statusCode(), errorCode, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, "InvalidRequest", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException | SAXException | ParserConfigurationException e) {
+            sendError(exchange, 500, "InternalError", e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void dispatch(HttpExchange exchange, byte[] body)
+            throws IOException, SAXException, ParserConfigurationException {
+        String path = exchange.getRequestURI().getPath();
+        int slash = path.indexOf('/', 1);
+        String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+        String key = slash < 0 ? "" : path.substring(slash + 1);
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        Headers headers = exchange.getRequestHeaders();
+        String copySource = headers.getFirst("x-amz-copy-source");
+
+        switch (exchange.getRequestMethod()) {
+            case "HEAD":
+                headObject(exchange, key);
+                break;
+            case "GET":
+                if (key.isEmpty()) {
+                    listObjects(exchange, bucket, query);
+                } else {
+                    getObject(exchange, key);
+                }
+                break;
+            case "PUT":
+                if (query.containsKey("uploadId") && copySource != null) {
+                    String eTag = store.uploadPartCopy(UploadPartCopyRequest.builder()
+                                    .sourceKey(copySourceKey(copySource))
+                                    .copySourceRange(headers.getFirst("x-amz-copy-source-range"))
+                                    .uploadId(query.get("uploadId"))
+                                    .partNumber(Integer.parseInt(query.get("partNumber")))
+                                    .build())
+                            .copyPartResult().eTag();
+                    sendXml(exchange, 200, "<CopyPartResult" + NAMESPACE + ">" + element("ETag", eTag)
+                            + element("LastModified", Instant.now().toString()) + "</CopyPartResult>");
+                } else if (query.containsKey("uploadId")) {
+                    String eTag = store.uploadPart(UploadPartRequest.builder()
+                                    .key(key)
+                                    .uploadId(query.get("uploadId"))
+                                    .partNumber(Integer.parseInt(query.get("partNumber")))
+                                    .build(), RequestBody.fromBytes(body))
+                            .eTag();
+                    exchange.getResponseHeaders().set("ETag", eTag);
+                    send(exchange, 200, null);
+                } else if (copySource != null) {
+                    store.copyObject(CopyObjectRequest.builder()
+                            .sourceKey(copySourceKey(copySource))
+                            .destinationKey(key)
+                            .build());
+                    sendXml(exchange, 200, "<CopyObjectResult" + NAMESPACE + ">"
+                            + element("ETag", store.headObject(HeadObjectRequest.builder().key(key).build()).eTag())
+                            + element("LastModified", Instant.now().toString()) + "</CopyObjectResult>");
+                } else {
+                    String eTag = store.putObject(PutObjectRequest.builder()
+                                    .key(key)
+                                    .contentType(headers.getFirst("Content-Type"))
+                                    .metadata(metadata(headers))
+                                    .build(), RequestBody.fromBytes(body))
+                            .eTag();
+                    exchange.getResponseHeaders().set("ETag", eTag);
+                    send(exchange, 200, null);
+                }
+                break;
+            case "POST":
+                if (query.containsKey("uploads")) {
+                    CreateMultipartUploadResponse created = store.createMultipartUpload(
+                            CreateMultipartUploadRequest.builder()
+                                    .bucket(bucket)
+                                    .key(key)
+                                    .metadata(metadata(headers))
+                                    .build());
+                    sendXml(exchange, 200, "<InitiateMultipartUploadResult" + NAMESPACE + ">"
+                            + element("Bucket", bucket) + element("Key", key)
+                            + element("UploadId", created.uploadId()) + "</InitiateMultipartUploadResult>");
+                } else if (query.containsKey("uploadId")) {
+                    completeMultipartUpload(exchange, bucket, key, query.get("uploadId"), parse(body));
+                } else if (query.containsKey("delete")) {
+                    deleteObjects(exchange, parse(body));
+                } else {
+                    sendError(exchange, 501, "NotImplemented", "POST " + exchange.getRequestURI());
+                }
+                break;
+            case "DELETE":
+                if (query.containsKey("uploadId")) {
+                    store.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                            .key(key)
+                            .uploadId(query.get("uploadId"))
+                            .build());
+                } else {
+                    store.deleteObject(DeleteObjectRequest.builder().key(key).build());
+                }
+                send(exchange, 204, null);
+                break;
+            default:
+                sendError(exchange, 405, "MethodNotAllowed", exchange.getRequestMethod());
+        }
+    }
+
+    private void headObject(HttpExchange exchange, String key) throws IOException {
+        HeadObjectResponse head;
+        try {
+            head = store.headObject(HeadObjectRequest.builder().key(key).build());
+        } catch (software.amazon.awssdk.services.s3.model.S3Exception e) {
+            // no body in the response to a HEAD request, only the status
+            exchange.sendResponseHeaders(e.statusCode(), -1);
+            return;
+        }
+        Headers responseHeaders = exchange.getResponseHeaders();
+        objectHeaders(responseHeaders, head.eTag(), head.contentType(), head.lastModified(), head.metadata());
+        responseHeaders.set("Content-Length", Long.toString(head.contentLength()));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void getObject(HttpExchange exchange, String key) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        ResponseBytes<GetObjectResponse> object = store.getObject(GetObjectRequest.builder()
+                .key(key)
+                .range(headers.getFirst("Range"))
+                .ifMatch(headers.getFirst("If-Match"))
+                .build(), ResponseTransformer.toBytes());
+        GetObjectResponse response = object.response();
+        objectHeaders(exchange.getResponseHeaders(), response.eTag(), response.contentType(), response.lastModified(),
+                response.metadata());
+        if (response.contentRange() != null) {
+            exchange.getResponseHeaders().set("Content-Range", response.contentRange());
+        }
+        send(exchange, response.contentRange() == null ? 200 : 206, object.asByteArrayUnsafe());
+    }
+
+    private static void objectHeaders(Headers headers, String eTag, String contentType, Instant lastModified,
+                                      Map<String, String> metadata) {
+        headers.set("ETag", eTag);
+        headers.set("Content-Type", contentType == null ? "binary/octet-stream" : contentType);
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(lastModified.atOffset(ZoneOffset.UTC)));
+        metadata.forEach((name, value) -> headers.set(METADATA_PREFIX + name, value));
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        ListObjectsV2Response listing = store.listObjectsV2(ListObjectsV2Request.builder()
+                .prefix(query.get("prefix"))
+                .delimiter(query.get("delimiter"))
+                .maxKeys(query.containsKey("max-keys") ? Integer.valueOf(query.get("max-keys")) : null)
+                .continuationToken(query.get("continuation-token"))
+                .startAfter(query.get("start-after"))
+                .build());
+        // Keys are returned as they are, so no EncodingType: the SDK would decode them otherwise
+        StringBuilder xml = new StringBuilder("<ListBucketResult" + NAMESPACE + ">")
+                .append(element("Name", bucket))
+                .append(element("Prefix", query.getOrDefault("prefix", "")))
+                .append(element("KeyCount", Integer.toString(listing.keyCount())))
+                .append(element("MaxKeys", query.getOrDefault("max-keys",
+                        Integer.toString(InMemoryS3Client.DEFAULT_MAX_KEYS))))
+                .append(element("IsTruncated", listing.isTruncated().toString()));
+        if (query.containsKey("delimiter")) {
+            xml.append(element("Delimiter", query.get("delimiter")));
+        }
+        if (query.containsKey("continuation-token")) {
+            xml.append(element("ContinuationToken", query.get("continuation-token")));
+        }
+        if (listing.nextContinuationToken() != null) {
+            xml.append(element("NextContinuationToken", listing.nextContinuationToken()));
+        }
+        for (S3Object object : listing.contents()) {
+            xml.append("<Contents>")
+                    .append(element("Key", object.key()))
+                    // with the precision of S3, like the Last-Modified header
+                    .append(element("LastModified", object.lastModified().truncatedTo(ChronoUnit.SECONDS).toString()))
+                    .append(element("ETag", object.eTag()))
+                    .append(element("Size", object.size().toString()))
+                    .append(element("StorageClass", "STANDARD"))
+                    .append("</Contents>");
+        }
+        for (CommonPrefix commonPrefix : listing.commonPrefixes()) {
+            xml.append("<CommonPrefixes>").append(element("Prefix", commonPrefix.prefix())).append("</CommonPrefixes>");
+        }
+        sendXml(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String bucket, String key, String uploadId,
+                                         Document body) throws IOException {
+        List<CompletedPart> parts = new ArrayList<>();
+        NodeList partElements = body.getElementsByTagName("Part");
+        for (int i = 0; i < partElements.getLength(); i++) {
+            Element part = (Element) partElements.item(i);
+            parts.add(CompletedPart.builder()
+                    .partNumber(Integer.parseInt(text(part, "PartNumber")))
+                    .eTag(text(part, "ETag"))
+                    .build());
+        }
+        store.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build());
+        String eTag = store.headObject(HeadObjectRequest.builder().key(key).build()).eTag();
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult" + NAMESPACE + ">"
+                + element("Location", endpoint() + "/" + bucket + "/" + key)
+                + element("Bucket", bucket) + element("Key", key) + element("ETag", eTag)
+                + "</CompleteMultipartUploadResult>");
+    }
+
+    private void deleteObjects(HttpExchange exchange, Document body) throws IOException {
+        List<ObjectIdentifier> identifiers = new ArrayList<>();
+        NodeList objectElements = body.getElementsByTagName("Object");
+        for (int i = 0; i < objectElements.getLength(); i++) {
+            identifiers.add(ObjectIdentifier.builder().key(text((Element) objectElements.item(i), "Key")).build());
+        }
+        DeleteObjectsResponse response = store.deleteObjects(DeleteObjectsRequest.builder()
+                .delete(Delete.builder().objects(identifiers).build())
+                .build());
+        StringBuilder xml = new StringBuilder("<DeleteResult" + NAMESPACE + ">");
+        for (DeletedObject deleted : response.deleted()) {
+            xml.append("<Deleted>").append(element("Key", deleted.key())).append("</Deleted>");
+        }
+        sendXml(exchange, 200, xml.append("</DeleteResult>").toString());
+    }
+
+    /**
+     * Read the whole body of the request, within the bandwidth. The SDK streams uploads with the
+     * {@code aws-chunked} encoding, which is decoded here, and its chunk signatures and trailing
+     * checksum are ignored.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(chunk)) >= 0) {
+                bandwidth.acquire(n);
+                body.write(chunk, 0, n);
+            }
+        }
+        Headers headers = exchange.getRequestHeaders();
+        String contentSha256 = headers.getFirst("x-amz-content-sha256");
+        String contentEncoding = headers.getFirst("Content-Encoding");
+        if ((contentSha256 != null && contentSha256.startsWith("STREAMING-"))
+                || (contentEncoding != null && contentEncoding.contains("aws-chunked"))) {
+            return decodeAwsChunked(body.toByteArray());
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Chunks are {@code <hex length>[;chunk-signature=...]\r\n<data>\r\n}, until one of length 0,
+     * followed by the trailers.
+     */
+    static byte[] decodeAwsChunked(byte[] encoded) {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(encoded.length);
+        int position = 0;
+        while (position < encoded.length) {
+            int lineEnd = indexOfCrLf(encoded, position);
+            String header = new String(encoded, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int extension = header.indexOf(';');
+            int length = Integer.parseInt((extension < 0 ? header : header.substring(0, extension)).trim(), 16);
+            if (length == 0) {
+                break;
+            }
+            decoded.write(encoded, lineEnd + 2, length);
+            position = lineEnd + 2 + length + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static int indexOfCrLf(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length - 1; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Truncated aws-chunked body");
+    }
+
+    private void sendError(HttpExchange exchange, int status, String errorCode, String message) throws IOException {
+        sendXml(exchange, status, "<Error>" + element("Code", errorCode) + element("Message", message)
+                + element("RequestId", UUID.randomUUID().toString()) + "</Error>");
+    }
+
+    private void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        send(exchange, status, (XML_HEADER + xml).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send the response, within the bandwidth. A body of {@code null} sends none.
+     */
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("x-amz-request-id", UUID.randomUUID().toString());
+        if (body == null || body.length == 0) {
+            if (status != 204) {
+                exchange.getResponseHeaders().set("Content-Length", "0");
+            }
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                int n = Math.min(CHUNK_SIZE, body.length - offset);
+                bandwidth.acquire(n);
+                out.write(body, offset, n);
+            }
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                query.put(decode(parameter), "");
+            } else {
+                query.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return the key of {@code bucket/key}, URL encoded, with or without a leading slash.
+     */
+    private static String copySourceKey(String copySource) {
+        String source = decode(copySource.startsWith("/") ? copySource.substring(1) : copySource);
+        return source.substring(source.indexOf('/') + 1);
+    }
+
+    private static String decode(String encoded) {
+        // a plus is a plus in a path, not a space
+        return URLDecoder.decode(encoded.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> metadata(Headers headers) {
+        Map<String, String> metadata = new HashMap<>();
+        headers.forEach((name, values) -> {
+            if (name.toLowerCase(Locale.ROOT).startsWith(METADATA_PREFIX)) {
+                metadata.put(name.substring(METADATA_PREFIX.length()).toLowerCase(Locale.ROOT), values.get(0));
+            }
+        });
+        return metadata;
+    }
+
+    private static Document parse(byte[] xml) throws IOException, SAXException, ParserConfigurationException {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    private static String text(Element parent, String tagName) {
+        NodeList elements = parent.getElementsByTagName(tagName);
+        return elements.getLength() == 0 ? null : elements.item(0).getTextContent();
+    }
+
+    private static String element(String name, String value) {
+        return "<" + name + ">" + escape(value) + "</" + name + ">";
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+}
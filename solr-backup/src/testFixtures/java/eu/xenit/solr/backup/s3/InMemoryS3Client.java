@@ -0,0 +1,460 @@
+package eu.xenit.solr.backup.s3;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyPartResult;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.DeletedObject;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * {@link S3Client} stub keeping objects in memory, and counting the requests it receives per
+ * operation. Only the operations used by the backup repository are implemented.
+ */
+class InMemoryS3Client implements S3Client {
+
+    static final int DEFAULT_MAX_KEYS = 1000;
+
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> uploadMetadata = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private volatile IntConsumer uploadPartHook = partNumber -> { };
+    private volatile Consumer<String> putObjectHook = key -> { };
+    private volatile Consumer<String> getObjectHook = key -> { };
+    private volatile Consumer<String> copyObjectHook = key -> { };
+    private volatile Clock clock = Clock.systemUTC();
+    private volatile Consumer<List<String>> deleteObjectsHook = keys -> { };
+
+    static final class StoredObject {
+        final byte[] data;
+        final String contentType;
+        final Map<String, String> metadata;
+        final Instant lastModified;
+        // Hashed once, as it is returned with every ranged read
+        private final String eTag;
+
+        StoredObject(byte[] data, String contentType, Map<String, String> metadata, Instant lastModified) {
+            this.data = data;
+            this.contentType = contentType;
+            this.metadata = metadata == null ? Collections.emptyMap() : metadata;
+            this.lastModified = lastModified;
+            this.eTag = "\"" + Integer.toHexString(Arrays.hashCode(data)) + "\"";
+        }
+
+        String eTag() {
+            return eTag;
+        }
+    }
+
+    /**
+     * Called with the part number before a part is stored. May block, or throw to fail the part.
+     */
+    void onUploadPart(IntConsumer hook) {
+        this.uploadPartHook = hook;
+    }
+
+    void onPutObject(Consumer<String> hook) {
+        this.putObjectHook = hook;
+    }
+
+    /**
+     * Called with the key before an object is read.
+     */
+    void onGetObject(Consumer<String> hook) {
+        this.getObjectHook = hook;
+    }
+
+    /**
+     * Clock of the modification time of the objects written from now on, e.g. set back to write
+     * objects that look older.
+     */
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    // S3 keeps the modification times to the second
+    private Instant now() {
+        return clock.instant().truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    /**
+     * Called with the destination key before an object is copied. May throw to fail the copy.
+     */
+    void onCopyObject(Consumer<String> hook) {
+        this.copyObjectHook = hook;
+    }
+
+    /**
+     * Called with the keys of a batch before they are deleted. May block, or throw to fail the batch.
+     */
+    void onDeleteObjects(Consumer<List<String>> hook) {
+        this.deleteObjectsHook = hook;
+    }
+
+    /**
+     * @return an error as returned by S3, with the given HTTP status and error code.
+     */
+    static software.amazon.awssdk.services.s3.model.S3Exception serviceError(int status, String errorCode) {
+        return (software.amazon.awssdk.services.s3.model.S3Exception) software.amazon.awssdk.services.s3.model.S3Exception
+                .builder()
+                .statusCode(status)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).serviceName("S3").build())
+                .build();
+    }
+
+    int requestCount(String operation) {
+        AtomicInteger count = requests.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    int totalRequestCount() {
+        return requests.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    void resetRequestCounts() {
+        requests.clear();
+    }
+
+    Map<String, StoredObject> objects() {
+        return objects;
+    }
+
+    byte[] content(String key) {
+        StoredObject object = objects.get(key);
+        return object == null ? null : object.data;
+    }
+
+    int pendingUploads() {
+        return uploads.size();
+    }
+
+    private void count(String operation) {
+        requests.computeIfAbsent(operation, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static byte[] read(RequestBody body) {
+        try (InputStream in = body.contentStreamProvider().newStream()) {
+            // like the HTTP client, only send the announced number of bytes
+            return body.optionalContentLength().isPresent()
+                    ? in.readNBytes(Math.toIntExact(body.optionalContentLength().get()))
+                    : in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static NoSuchKeyException noSuchKey(String key) {
+        return NoSuchKeyException.builder()
+                .statusCode(404)
+                .message("The specified key does not exist: " + key)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("NoSuchKey").serviceName("S3").build())
+                .build();
+    }
+
+    private StoredObject get(String key) {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            throw noSuchKey(key);
+        }
+        return object;
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        count("HeadObject");
+        StoredObject object = get(request.key());
+        return HeadObjectResponse.builder()
+                .contentLength((long) object.data.length)
+                .contentType(object.contentType)
+                .eTag(object.eTag())
+                .lastModified(object.lastModified)
+                .metadata(object.metadata)
+                .build();
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request,
+                                       ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        count("GetObject");
+        getObjectHook.accept(request.key());
+        StoredObject object = get(request.key());
+        if (request.ifMatch() != null && !request.ifMatch().equals(object.eTag())) {
+            throw serviceError(412, "PreconditionFailed");
+        }
+        int from = 0;
+        int to = object.data.length;
+        String range = request.range();
+        if (range != null) {
+            // only the "bytes=first-last" form is supported
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            if (Long.parseLong(bounds[0]) >= object.data.length) {
+                throw serviceError(416, "InvalidRange");
+            }
+            from = (int) Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                to = (int) Math.min(Long.parseLong(bounds[1]) + 1, object.data.length);
+            }
+        }
+        GetObjectResponse response = GetObjectResponse.builder()
+                .contentLength((long) (to - from))
+                .contentRange(range == null ? null : "bytes " + from + "-" + (to - 1) + "/" + object.data.length)
+                .contentType(object.contentType)
+                .eTag(object.eTag())
+                .lastModified(object.lastModified)
+                .metadata(object.metadata)
+                .build();
+        try {
+            return transformer.transform(response,
+                    AbortableInputStream.create(new ByteArrayInputStream(object.data, from, to - from)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+        return getObject(request, ResponseTransformer.toInputStream());
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        count("PutObject");
+        putObjectHook.accept(request.key());
+        StoredObject object = new StoredObject(read(body), request.contentType(), request.metadata(), now());
+        objects.put(request.key(), object);
+        return PutObjectResponse.builder().eTag(object.eTag()).build();
+    }
+
+    @Override
+    public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+        count("CreateMultipartUpload");
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new ConcurrentHashMap<>());
+        uploadMetadata.put(uploadId, request.metadata());
+        return CreateMultipartUploadResponse.builder()
+                .bucket(request.bucket())
+                .key(request.key())
+                .uploadId(uploadId)
+                .build();
+    }
+
+    @Override
+    public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+        count("UploadPart");
+        uploadPartHook.accept(request.partNumber());
+        Map<Integer, byte[]> parts = uploads.get(request.uploadId());
+        if (parts == null) {
+            throw NoSuchUploadException.builder().statusCode(404).message(request.uploadId()).build();
+        }
+        byte[] data = read(body);
+        parts.put(request.partNumber(), data);
+        return UploadPartResponse.builder()
+                .eTag("\"" + request.partNumber() + "-" + data.length + "\"")
+                .build();
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        count("CompleteMultipartUpload");
+        Map<Integer, byte[]> parts = uploads.remove(request.uploadId());
+        if (parts == null) {
+            throw NoSuchUploadException.builder().statusCode(404).message(request.uploadId()).build();
+        }
+        int previousPartNumber = 0;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (CompletedPart part : request.multipartUpload().parts()) {
+            if (part.partNumber() <= previousPartNumber) {
+                throw new IllegalArgumentException("Parts must be listed in ascending order");
+            }
+            previousPartNumber = part.partNumber();
+            content.writeBytes(parts.get(part.partNumber()));
+        }
+        objects.put(request.key(),
+                new StoredObject(content.toByteArray(), null, uploadMetadata.remove(request.uploadId()), now()));
+        return CompleteMultipartUploadResponse.builder().key(request.key()).build();
+    }
+
+    @Override
+    public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+        count("AbortMultipartUpload");
+        uploads.remove(request.uploadId());
+        uploadMetadata.remove(request.uploadId());
+        return AbortMultipartUploadResponse.builder().build();
+    }
+
+    @Override
+    public CopyObjectResponse copyObject(CopyObjectRequest request) {
+        count("CopyObject");
+        copyObjectHook.accept(request.destinationKey());
+        StoredObject source = get(request.sourceKey());
+        objects.put(request.destinationKey(), new StoredObject(source.data, source.contentType, source.metadata, now()));
+        return CopyObjectResponse.builder().build();
+    }
+
+    @Override
+    public UploadPartCopyResponse uploadPartCopy(UploadPartCopyRequest request) {
+        count("UploadPartCopy");
+        StoredObject source = get(request.sourceKey());
+        Map<Integer, byte[]> parts = uploads.get(request.uploadId());
+        if (parts == null) {
+            throw NoSuchUploadException.builder().statusCode(404).message(request.uploadId()).build();
+        }
+        String[] bounds = request.copySourceRange().substring("bytes=".length()).split("-");
+        byte[] data = Arrays.copyOfRange(source.data, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+        parts.put(request.partNumber(), data);
+        return UploadPartCopyResponse.builder()
+                .copyPartResult(CopyPartResult.builder().eTag("\"" + request.partNumber() + "-" + data.length + "\"").build())
+                .build();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        count("ListObjectsV2");
+        String prefix = request.prefix() == null ? "" : request.prefix();
+        String delimiter = request.delimiter();
+        int maxKeys = request.maxKeys() == null ? DEFAULT_MAX_KEYS : request.maxKeys();
+        String cursor = request.continuationToken() != null ? request.continuationToken() : request.startAfter();
+        if (cursor != null && cursor.compareTo(prefix) < 0) {
+            cursor = null;
+        }
+
+        List<S3Object> contents = new ArrayList<>();
+        Map<String, Boolean> prefixes = new TreeMap<>();
+        boolean truncated = false;
+        while (true) {
+            Map.Entry<String, StoredObject> entry = cursor == null
+                    ? objects.ceilingEntry(prefix)
+                    : objects.higherEntry(cursor);
+            if (entry == null || !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (contents.size() + prefixes.size() >= maxKeys) {
+                truncated = true;
+                break;
+            }
+            String key = entry.getKey();
+            int delimiterIndex = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (delimiterIndex >= 0) {
+                String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                prefixes.put(commonPrefix, Boolean.TRUE);
+                // skip the other keys sharing this common prefix
+                cursor = objects.floorKey(commonPrefix + Character.MAX_VALUE);
+            } else {
+                contents.add(S3Object.builder()
+                        .key(key)
+                        .size((long) entry.getValue().data.length)
+                        .eTag(entry.getValue().eTag())
+                        .lastModified(entry.getValue().lastModified)
+                        .build());
+                cursor = key;
+            }
+        }
+        return listResponse(request, contents, prefixes, truncated, cursor);
+    }
+
+    private static ListObjectsV2Response listResponse(ListObjectsV2Request request, List<S3Object> contents,
+                                                      Map<String, Boolean> prefixes, boolean truncated,
+                                                      String lastKey) {
+        List<CommonPrefix> commonPrefixes = new ArrayList<>();
+        for (String commonPrefix : prefixes.keySet()) {
+            commonPrefixes.add(CommonPrefix.builder().prefix(commonPrefix).build());
+        }
+        return ListObjectsV2Response.builder()
+                .prefix(request.prefix())
+                .delimiter(request.delimiter())
+                .contents(contents)
+                .commonPrefixes(commonPrefixes)
+                .keyCount(contents.size() + commonPrefixes.size())
+                .isTruncated(truncated)
+                .nextContinuationToken(truncated ? lastKey : null)
+                .build();
+    }
+
+    @Override
+    public DeleteObjectsResponse deleteObjects(DeleteObjectsRequest request) {
+        count("DeleteObjects");
+        deleteObjectsHook.accept(request.delete().objects().stream()
+                .map(ObjectIdentifier::key)
+                .collect(Collectors.toList()));
+        List<DeletedObject> deleted = new ArrayList<>();
+        for (ObjectIdentifier identifier : request.delete().objects()) {
+            if (objects.remove(identifier.key()) != null) {
+                deleted.add(DeletedObject.builder().key(identifier.key()).build());
+            }
+        }
+        return DeleteObjectsResponse.builder().deleted(deleted).build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+        count("DeleteObject");
+        objects.remove(request.key());
+        return DeleteObjectResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+}
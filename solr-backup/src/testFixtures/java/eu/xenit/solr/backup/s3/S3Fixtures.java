@@ -0,0 +1,60 @@
+package eu.xenit.solr.backup.s3;
+
+import org.apache.solr.common.util.NamedList;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Configurations, data and repositories shared by the tests and the benchmarks, to be used with an
+ * {@link InMemoryS3Client} or a {@link FakeS3Server}.
+ */
+final class S3Fixtures {
+    static final String BUCKET = "bucket";
+
+    private S3Fixtures() {
+    }
+
+    /**
+     * @param keyValues properties of the repository, e.g. {@code S3_UPLOAD_PARALLEL_PARTS, 4}, on top
+     *                  of the bucket.
+     */
+    static S3BackupRepositoryConfig config(Object... keyValues) {
+        NamedList<Object> args = new NamedList<>();
+        args.add(S3BackupRepositoryConfig.S3_BUCKET_NAME, BUCKET);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.add((String) keyValues[i], keyValues[i + 1]);
+        }
+        return new S3BackupRepositoryConfig(args);
+    }
+
+    /**
+     * @return the same bytes for the same length.
+     */
+    static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * @param keyValues properties of the repository, see {@link #config}.
+     * @return a repository storing its files through {@code s3Client}.
+     */
+    static S3BackupRepository repository(S3Client s3Client, Object... keyValues) {
+        S3BackupRepository repository = new S3BackupRepository();
+        repository.setClient(new S3StorageClient(s3Client, config(keyValues)));
+        return repository;
+    }
+
+    /**
+     * @return the directory of a new backup under {@code /backups}, created with its parent.
+     */
+    static URI snapshot(S3BackupRepository repository, String name) throws IOException {
+        URI dest = repository.resolveDirectory(repository.createDirectoryURI("/backups"), name);
+        repository.createDirectory(dest);
+        return dest;
+    }
+}